@@ -1,5 +1,7 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 //Program performs graph based clustering class
 public class Graph
@@ -21,15 +23,90 @@ public class Graph
 
 	/************************************************************************/
 
+	//Cell of grid of records
+	private class Cell
+	{
+		private int[] coordinates;				//coordinates of cell in grid
+		private int[] records;					//records in cell
+		private int size;						//number of records in cell
+
+		//constructor of cell
+		private Cell(int[] coordinates)
+		{
+			this.coordinates = coordinates;
+			this.records = new int[4];
+			this.size = 0;
+		}
+
+		//cells are equal if their coordinates are equal
+		public boolean equals(Object other)
+		{
+			return other instanceof Cell &&
+				Arrays.equals(coordinates, ((Cell) other).coordinates);
+		}
+
+		//hash code of cell comes from its coordinates
+		public int hashCode()
+		{
+			return Arrays.hashCode(coordinates);
+		}
+	}
+
+	/************************************************************************/
+
 	private int numberRecords; 				//number of records
 	private int numberAttributes;			//number of attributes
 	private int numberClusters;				//number of clusters
 	private double delta;					//neighbor threshold
+	private double threshold;				//largest squared distance of neighbors
+	private int minPoints;					//neighbors of a core record
+	private int numberNoise;				//records in no cluster
 
 	private ArrayList<Record> records;		//list of records
-	private int[][] matrix;					//adjacency matrix
+	private int[] offsets;					//start of neighbors of each record
+	private int[] neighbors;				//neighbors of records one after another
+	private int numberNeighbors;			//number of neighbors of all records
 	private int[] clusters;					//clusters of records
 
+	private String search;					//neighbor search, brute or grid
+	private int[] gridAttributes;			//attributes grid is laid over
+	private double[] gridMinimums;			//lowest values of grid attributes
+	private HashMap<Cell, Cell> cells;		//cells of grid by their coordinates
+
+	private String components;				//components found by bfs, unionfind or bitset
+	private long[][] bits;					//adjacency bits of records
+	private AtomicIntegerArray parents;		//parents of records in union find
+	private int parallelism;				//number of threads
+	private ForkJoinPool pool;				//pool of threads
+	private int numberChunks;				//number of chunks of records
+	private int[] tileRows;					//first records of rows of tiles
+	private int[] tileColumns;				//first records of columns of tiles
+	private int[][] chunkPairs;				//neighbor pairs found in each chunk
+	private int[] chunkSizes;				//number of values in chunk pairs
+	private long pairsCompared;				//pairs compared by neighbor search
+
+	private int numberTables;				//number of hash tables
+	private int numberProjections;			//random projections of a hash
+	private long hashSeed;					//seed of random projections
+
+	private int[] mergeFrom;				//records joined by each tree edge,
+	private int[] mergeTo;					//in order of increasing length
+	private double[] mergeDistances;		//lengths of tree edges
+
+	private int[][] lists;					//neighbor lists of records while updating
+	private int[] degrees;					//number of neighbors in lists
+	private int[] clusterSizes;				//sizes of clusters by name
+	private int nextName;					//next unused cluster name
+	private int numberRemoved;				//records removed by updates
+	private boolean namesOrdered;			//cluster names in order of first records
+	private boolean rowsCurrent;			//clusters come from neighbor rows or lists
+
+	private static final int GRID_ATTRIBUTES = 3;		//most attributes of grid
+	private static final int MAX_COORDINATE = 1 << 30;	//largest grid coordinate
+	private static final int CHUNK_SIZE = 256;			//records in a chunk
+	private static final int TILE_SIZE = 256;			//records in a side of a tile
+	private static final double HASH_WIDTH = 4;		//bucket width in units of delta
+
 	/************************************************************************/
 
 	//Constructor of clustering
@@ -39,11 +116,54 @@ public class Graph
 		numberRecords = 0;
 		numberAttributes = 0;
 		delta = 0;
+		threshold = 0;
+		minPoints = 0;
+		numberNoise = 0;
 
 		//lists are empty
 		records = null;
-		matrix = null;
+		offsets = null;
+		neighbors = null;
+		numberNeighbors = 0;
 		clusters = null;
+
+		//neighbors are found by comparing all pairs
+		search = "brute";
+		gridAttributes = null;
+		gridMinimums = null;
+		cells = null;
+
+		//components are found by traversal on one thread
+		components = "bfs";
+		bits = null;
+		parents = null;
+		parallelism = 1;
+		pool = null;
+		numberChunks = 0;
+		tileRows = null;
+		tileColumns = null;
+		chunkPairs = null;
+		chunkSizes = null;
+		pairsCompared = 0;
+
+		//hashing uses 8 tables of 4 projections
+		numberTables = 8;
+		numberProjections = 4;
+		hashSeed = 0;
+
+		//there is no dendrogram
+		mergeFrom = null;
+		mergeTo = null;
+		mergeDistances = null;
+
+		//records are not updated
+		lists = null;
+		degrees = null;
+		clusterSizes = null;
+		nextName = 0;
+		numberRemoved = 0;
+		namesOrdered = true;
+		rowsCurrent = false;
 	}
 
 	/************************************************************************/
@@ -85,6 +205,84 @@ public class Graph
 	{
 		//set neighbor threshold
 		this.delta = delta;
+		this.threshold = squaredThreshold(delta);
+		this.minPoints = 0;
+
+		//clusters and neighbor rows are of old threshold
+		rowsCurrent = false;
+	}
+
+	/************************************************************************/
+
+	//Method sets parameters of density clustering, records with at least
+	//minPoints neighbors within delta, counting themselves, are core records;
+	//clusters grow only thru core records, and records not near any core
+	//record are noise
+	public void setParameter(double delta, int minPoints)
+	{
+		this.delta = delta;
+		this.threshold = squaredThreshold(delta);
+		this.minPoints = minPoints;
+
+		//clusters and neighbor rows are of old parameters
+		rowsCurrent = false;
+	}
+
+	/************************************************************************/
+
+	//Method sets neighbor search, brute compares every pair of records, grid
+	//compares records only with records in the same or adjacent cells of a
+	//grid with cell size delta, tiled compares each unordered pair once in
+	//square tiles of records run in parallel, lsh compares only records
+	//hashed into the same bucket of some hash table, which may miss some
+	//neighbors
+	public void setNeighborSearch(String search)
+	{
+		this.search = search;
+
+		//neighbor rows and grid are of old search
+		rowsCurrent = false;
+	}
+
+	/************************************************************************/
+
+	//Method sets hash tables of lsh search, more tables find more neighbors
+	//but compare more pairs, more projections per table compare fewer pairs
+	//but miss more neighbors
+	public void setHashing(int numberTables, int numberProjections, long seed)
+	{
+		this.numberTables = numberTables;
+		this.numberProjections = numberProjections;
+		this.hashSeed = seed;
+
+		//neighbor rows are of old hash tables
+		rowsCurrent = false;
+	}
+
+	/************************************************************************/
+
+	//Method sets how components are found, bfs builds neighbor lists and
+	//traverses them, unionfind unites neighbors as they are found without
+	//storing them, bitset builds adjacency bits, n^2/8 bytes, and traverses
+	//them a word of 64 records at a time, all give the same clusters; with
+	//lsh search or minimum points, neighbor lists are always built
+	public void setComponents(String components)
+	{
+		this.components = components;
+	}
+
+	/************************************************************************/
+
+	//Method sets number of threads used to find neighbors in union find and
+	//tiled search, results do not depend on number of threads
+	public void setParallelism(int parallelism)
+	{
+		this.parallelism = parallelism;
+
+		//create pool of threads if more than one thread is used
+		if (pool != null)
+			pool.shutdown();
+		pool = (parallelism > 1) ? new ForkJoinPool(parallelism) : null;
 	}
 
 	/************************************************************************/
@@ -92,8 +290,35 @@ public class Graph
 	//Method performs clustering
 	public void cluster()
 	{
-		//create adjacency matrix of records
-		createMatrix();
+		//forget updates, removed records are dropped
+		finishUpdates();
+
+		//unite neighbors without neighbor lists, density clustering needs
+		//them to count neighbors and lsh search finds its candidates only
+		//while building them
+		if (components.equals("unionfind") && minPoints == 0 && !usesHashing())
+		{
+			clusterUnionFind();
+			return;
+		}
+
+		//traverse adjacency bits
+		if (components.equals("bitset") && minPoints == 0 && !usesHashing())
+		{
+			clusterBitset();
+			return;
+		}
+
+		clusterRows();
+	}
+
+	/************************************************************************/
+
+	//Method clusters records by creating neighbor lists and traversing them
+	private void clusterRows()
+	{
+		//create neighbor lists of records
+		createNeighbors();
 
 		//initialize clusters of records
 		initializeClusters();
@@ -107,8 +332,8 @@ public class Graph
 		//while there are more records
 		while(index < numberRecords)
 		{
-			//if record does not have cluster name
-			if (clusters[index] == -1)
+			//if record does not have cluster name and can start a cluster
+			if (clusters[index] == -1 && core(index))
 			{
 				//assign cluster name to record and all records connected to it
 				assignCluster(index, clusterName);
@@ -122,223 +347,1571 @@ public class Graph
 		}
 		
 		numberClusters = clusterName;
+
+		//records left without cluster name are noise
+		numberNoise = 0;
+		for (int i = 0; i < numberRecords; i++)
+			if (clusters[i] == -1)
+				numberNoise++;
+
+		rowsCurrent = true;
 	}
 
 	/************************************************************************/
 
-	//Method creates adjacency matrix
-	private void createMatrix()
+	//Method decides whether record is core record, every record is a core
+	//record unless density clustering is used
+	private boolean core(int i)
 	{
-		//allocate adjacency matrix
-		matrix = new int[numberRecords][numberRecords];
-
-		//entry (i, j) is 0 or 1 depending on i and j are neighbors or not
-		for (int i = 0; i < numberRecords; i++)
-			for (int j = 0; j < numberRecords; j++)
-				matrix[i][j] = neighbor(records.get(i), records.get(j));
+		return offsets[i+1] - offsets[i] >= minPoints;
 	}
 
 	/************************************************************************/
 
-	//Method decides whether two records are neighbors or not
-	private int neighbor(Record u, Record v)
+	//Method creates neighbor lists of records in compressed sparse rows,
+	//neighbors of record i are neighbors[offsets[i]] to
+	//neighbors[offsets[i+1]-1] in increasing order, so memory grows with
+	//number of neighbor pairs instead of square of number of records
+	private void createNeighbors()
 	{
-		double distance = 0;
+		offsets = new int[numberRecords + 1];
+		neighbors = new int[Math.max(16, numberRecords)];
+		numberNeighbors = 0;
 
-		//find euclidean distance between two records
-		for (int i = 0; i < u.attributes.length; i++)
-			distance += (u.attributes[i] - v.attributes[i])*
-						(u.attributes[i] - v.attributes[i]);
+		//compare pairs in tiles
+		if (search.equals("tiled"))
+		{
+			createTiledNeighbors();
+			return;
+		}
+
+		//compare pairs in buckets of hash tables
+		if (usesHashing())
+		{
+			createHashedNeighbors();
+			return;
+		}
 
-		distance = Math.sqrt(distance);
+		//every record is compared with every record, or counted below
+		pairsCompared = usesGrid() ? 0 : (long) numberRecords*numberRecords;
 
-		//if distance is less than neighbor threshold records are neighbors,
-		//otherwise records are not neighbors
-		if (distance <= delta)
-			return 1;
-		else
-			return 0;
+		//put records into cells of grid
+		if (usesGrid())
+			createGrid();
+
+		//coordinates of record, cell searched in grid and cells found
+		int[] center = null;
+		Cell probe = null;
+		Cell[] adjacent = null;
+		if (usesGrid())
+		{
+			center = new int[gridAttributes.length];
+			probe = new Cell(new int[gridAttributes.length]);
+			adjacent = new Cell[numberAdjacent()];
+		}
+
+		//go thru records row by row and append their neighbors
+		for (int i = 0; i < numberRecords; i++)
+		{
+			offsets[i] = numberNeighbors;
+
+			if (usesGrid())
+				addGridNeighbors(i, center, probe, adjacent);
+			else
+			{
+				for (int j = 0; j < numberRecords; j++)
+					if (neighbor(records.get(i), records.get(j)) == 1)
+						addNeighbor(j);
+			}
+		}
+
+		offsets[numberRecords] = numberNeighbors;
 	}
 
 	/************************************************************************/
 
-	//Method initializes clusters of records
-	private void initializeClusters()
+	//Method decides whether neighbors are found with grid, a grid needs a
+	//positive cell size
+	private boolean usesGrid()
 	{
-		//create array of cluster labels
-		clusters = new int[numberRecords];
+		return search.equals("grid") && delta > 0;
+	}
+
+	/************************************************************************/
+
+	//Method puts records into cells of a grid with cell size delta, laid over
+	//the attributes with widest ranges, at most GRID_ATTRIBUTES of them so a
+	//record has at most 3^GRID_ATTRIBUTES adjacent cells; neighbors within
+	//delta in all attributes are within delta in grid attributes, so they
+	//are always in the same or adjacent cells
+	private void createGrid()
+	{
+		//find range of each attribute
+		double[] minimums = new double[numberAttributes];
+		double[] maximums = new double[numberAttributes];
+		Arrays.fill(minimums, Double.POSITIVE_INFINITY);
+		Arrays.fill(maximums, Double.NEGATIVE_INFINITY);
 
-		//assign cluster -1 to all records
 		for (int i = 0; i < numberRecords; i++)
-			clusters[i] = -1;
+			for (int j = 0; j < numberAttributes; j++)
+			{
+				double value = records.get(i).attributes[j];
+				minimums[j] = Math.min(minimums[j], value);
+				maximums[j] = Math.max(maximums[j], value);
+			}
+
+		//pick attributes with widest ranges, ties go to lower index
+		int numberGrid = Math.min(GRID_ATTRIBUTES, numberAttributes);
+		gridAttributes = new int[numberGrid];
+		gridMinimums = new double[numberGrid];
+		boolean[] picked = new boolean[numberAttributes];
+
+		for (int k = 0; k < numberGrid; k++)
+		{
+			int widest = -1;
+			for (int j = 0; j < numberAttributes; j++)
+				if (!picked[j] && (widest == -1 ||
+						maximums[j] - minimums[j] > maximums[widest] - minimums[widest]))
+					widest = j;
+
+			picked[widest] = true;
+			gridAttributes[k] = widest;
+			gridMinimums[k] = minimums[widest];
+		}
+
+		//put each record into its cell
+		cells = new HashMap<Cell, Cell>();
+		for (int i = 0; i < numberRecords; i++)
+			addToCell(i);
 	}
 
 	/************************************************************************/
 
-	//Method assigns cluster name to a record and all records connected to it
-	//using breadth first traversal
-	private void assignCluster(int index, int clusterName)
+	//Method adds record to its cell, creating the cell if it has no records
+	private void addToCell(int i)
 	{
-		//assign cluster name to record
-		clusters[index] = clusterName;
+		Cell cell = new Cell(new int[gridAttributes.length]);
+		findCoordinates(records.get(i), cell.coordinates);
 
-		//list used in traversal
-		LinkedList<Integer> list = new LinkedList<Integer>();
+		Cell existing = cells.get(cell);
+		if (existing == null)
+			cells.put(cell, cell);
+		else
+			cell = existing;
 
-		//put record into list
-		list.addLast(index);
+		//add record to cell, doubling its size if full
+		if (cell.size == cell.records.length)
+			cell.records = Arrays.copyOf(cell.records, 2*cell.records.length);
+		cell.records[cell.size] = i;
+		cell.size++;
+	}
 
-		//while list has records
-		while (!list.isEmpty())
+	/************************************************************************/
+
+	//Method finds coordinates of cell of record, coordinates are capped so
+	//that adjacent coordinates never overflow
+	private void findCoordinates(Record record, int[] coordinates)
+	{
+		for (int k = 0; k < gridAttributes.length; k++)
 		{
-			//remove first record from list
-			int i = list.removeFirst();
+			double position = (record.attributes[gridAttributes[k]] - gridMinimums[k])/delta;
+			coordinates[k] = (int) Math.max(-MAX_COORDINATE,
+					Math.min(MAX_COORDINATE, Math.floor(position)));
+		}
+	}
 
-			//find neighbors of record which have no cluster names
-			for (int j = 0; j < numberRecords; j++)
-				if (matrix[i][j] == 1 && clusters[j] == -1)
-				{
-					//assign cluster name to neighbor
-					clusters[j] = clusterName;
+	/************************************************************************/
 
-					//add neighbor to list
-					list.addLast(j);
-				}
+	//Method finds number of cells adjacent to a cell, including itself
+	private int numberAdjacent()
+	{
+		int numberCells = 1;
+		for (int k = 0; k < gridAttributes.length; k++)
+			numberCells *= 3;
+
+		return numberCells;
+	}
+
+	/************************************************************************/
+
+	//Method finds cell of record and adjacent cells which have records,
+	//returns their number
+	private int findAdjacent(int i, int[] center, Cell probe, Cell[] adjacent)
+	{
+		findCoordinates(records.get(i), center);
+
+		//go thru 3^d cells around record, each digit of counter in base 3
+		//moves one coordinate by -1, 0 or +1
+		int numberCells = 0;
+		for (int c = 0; c < adjacent.length; c++)
+		{
+			int code = c;
+			for (int k = 0; k < center.length; k++)
+			{
+				probe.coordinates[k] = center[k] + code % 3 - 1;
+				code /= 3;
+			}
+
+			Cell cell = cells.get(probe);
+			if (cell != null)
+			{
+				adjacent[numberCells] = cell;
+				numberCells++;
+			}
 		}
+
+		return numberCells;
 	}
 
 	/************************************************************************/
 
-	//Method writes records and their clusters to output file
-	public void display(String outputFile) throws IOException
+	//Method appends neighbors of record found in its cell and adjacent cells,
+	//sorted so neighbor lists are the same as with brute search
+	private void addGridNeighbors(int i, int[] center, Cell probe, Cell[] adjacent)
 	{
-		PrintWriter outFile = new PrintWriter(new FileWriter(outputFile));
+		int numberCells = findAdjacent(i, center, probe, adjacent);
 
-		//for each cluster
-		for(int c = 0; c < numberClusters; c++)
+		//compare record with records of cells
+		for (int c = 0; c < numberCells; c++)
 		{
-			//for each record
-			for (int i = 0; i < numberRecords; i++)
+			Cell cell = adjacent[c];
+			for (int n = 0; n < cell.size; n++)
 			{
-				if(clusters[i] == c)
-				{
-					//write attributes of record
-					for (int j = 0; j < numberAttributes; j++)
-						outFile.print(records.get(i).attributes[j] + " ");
-		
-					//write cluster label
-					outFile.println(clusters[i]+1);
-				}
+				int j = cell.records[n];
+				if (neighbor(records.get(i), records.get(j)) == 1)
+					addNeighbor(j);
 			}
+
+			pairsCompared += cell.size;
 		}
 
-		outFile.close();
+		Arrays.sort(neighbors, offsets[i], numberNeighbors);
 	}
 
 	/************************************************************************/
-	
-	//Method displays number of clusters
-	public void numberClusters()
+
+	//Method clusters records by uniting each pair of neighbors in a union
+	//find as soon as it is found, chunks of records are searched in
+	//parallel and no neighbor lists are stored
+	private void clusterUnionFind()
 	{
-		System.out.println("Number of clusters : " + numberClusters + " .");
+		//each record starts as its own root
+		parents = new AtomicIntegerArray(numberRecords);
+		for (int i = 0; i < numberRecords; i++)
+			parents.set(i, i);
+
+		//put records into cells of grid
+		if (usesGrid())
+			createGrid();
+
+		//pairs are not counted by threads
+		pairsCompared = -1;
+
+		//unite neighbors in chunks of records
+		numberChunks = (numberRecords + CHUNK_SIZE - 1)/CHUNK_SIZE;
+		if (parallelism <= 1 || numberChunks <= 1)
+		{
+			for (int c = 0; c < numberChunks; c++)
+				uniteChunk(c);
+		}
+		else
+			pool.invoke(new ChunkTask(0, numberChunks, "unite"));
+
+		nameComponents();
 	}
-	
+
 	/************************************************************************/
 
-	//Method get centroids of clusters
-	private double[][] getCentroids()
+	//Method names components of union find, root of a component is its
+	//lowest record, so a record is named after its root was, giving names in
+	//order of first records as in bfs
+	private void nameComponents()
 	{
-		//centroids result
-		double[][] centroids = new double[numberClusters][numberAttributes];
-		
-		//create array of cluster sums
-		double[][] clusterSum = new double[numberClusters][numberAttributes];
-		
-		for (int i = 0; i < numberClusters; i++)
-			for (int j = 0; j < numberAttributes; j++)
+		clusters = new int[numberRecords];
+		int clusterName = 0;
+		for (int i = 0; i < numberRecords; i++)
+		{
+			int root = find(i);
+			if (root == i)
 			{
-				clusterSum[i][j] = 0;
-				centroids[i][j] = 0;
+				clusters[i] = clusterName;
+				clusterName = clusterName + 1;
 			}
+			else
+				clusters[i] = clusters[root];
+		}
 
-		//create array of cluster sizes and initialize
-		int[] clusterSize = new int[numberClusters];
-		for (int i = 0; i < numberClusters; i++)
-			clusterSize[i] = 0;
+		numberClusters = clusterName;
+		numberNoise = 0;
+		parents = null;
 
-		//for each record
-		for (int i = 0; i < numberRecords; i++)
-		{
-			//find cluster of record
-			int cluster = clusters[i];
+		//clusters do not come from neighbor rows
+		rowsCurrent = false;
+	}
 
-			//add record to cluster sum
-			clusterSum[cluster] = sum(clusterSum[cluster], records.get(i).attributes);
+	/************************************************************************/
 
-			//increment cluster size
-			clusterSize[cluster] += 1;
+	//Method unites each record of chunk with its neighbors of higher index,
+	//pairs already in one component are not compared
+	private void uniteChunk(int chunk)
+	{
+		int from = chunk*CHUNK_SIZE;
+		int to = Math.min(numberRecords, from + CHUNK_SIZE);
+
+		//coordinates of record, cell searched in grid and cells found
+		int[] center = null;
+		Cell probe = null;
+		Cell[] adjacent = null;
+		if (usesGrid())
+		{
+			center = new int[gridAttributes.length];
+			probe = new Cell(new int[gridAttributes.length]);
+			adjacent = new Cell[numberAdjacent()];
 		}
 
-		//find centroid of each cluster
-		for (int  i = 0; i < numberClusters; i++)
-			centroids[i] = scale(clusterSum[i], 1.0/clusterSize[i]);
-		
-		return centroids;
+		for (int i = from; i < to; i++)
+		{
+			if (usesGrid())
+			{
+				int numberCells = findAdjacent(i, center, probe, adjacent);
+				for (int c = 0; c < numberCells; c++)
+				{
+					Cell cell = adjacent[c];
+					for (int n = 0; n < cell.size; n++)
+						unite(i, cell.records[n]);
+				}
+			}
+			else
+			{
+				for (int j = i + 1; j < numberRecords; j++)
+					unite(i, j);
+			}
+		}
 	}
 
 	/************************************************************************/
 
-	//Method finds distance between two records
-	private double distance(double[]u, double[] v)
+	//Method unites record with another record of higher index if they are
+	//neighbors and not yet in one component
+	private void unite(int i, int j)
 	{
-		double sum = 0;
-
-		//find euclidean distance square between two records
-		for (int i = 0; i < u.length; i++)
-			sum += (u[i] - v[i])*(u[i] - v[i]);
+		if (j <= i || find(i) == find(j) ||
+				neighbor(records.get(i), records.get(j)) == 0)
+			return;
 
-		return sum;
+		link(i, j);
 	}
 
 	/************************************************************************/
 
-	//Method finds sum of two records
-	private double[] sum(double[] u, double[] v)
+	//Method puts two records into one component by linking higher root below
+	//lower root, retrying if another thread changed the higher root in the
+	//meantime
+	private void link(int i, int j)
 	{
-		double[] result = new double[u.length];
+		while (true)
+		{
+			int u = find(i);
+			int v = find(j);
+			if (u == v)
+				return;
 
-		//add corresponding attributes of records
-		for (int i = 0; i < u.length; i++)
-			result[i] = u[i] + v[i];
+			if (u > v)
+			{
+				int w = u;
+				u = v;
+				v = w;
+			}
 
-		return result;
+			if (parents.compareAndSet(v, v, u))
+				return;
+		}
 	}
 
 	/************************************************************************/
 
-	//Method finds scaler multiple of a record
-	private double[] scale(double[] u, double k)
+	//Method builds single linkage dendrogram of records as minimum spanning
+	//tree, so clusters for any neighbor threshold are found by clusterAt
+	//without comparing records again; records are connected at threshold
+	//delta exactly if tree edges no longer than delta connect them;
+	//inserting or removing records drops the dendrogram
+	public void createDendrogram()
 	{
-		double[] result = new double[u.length];
+		//forget updates, removed records are dropped
+		finishUpdates();
+
+		mergeFrom = new int[Math.max(0, numberRecords - 1)];
+		mergeTo = new int[mergeFrom.length];
+		mergeDistances = new double[mergeFrom.length];
+		if (numberRecords == 0)
+			return;
+
+		//grow tree from first record, each record outside tree keeps its
+		//closest record in tree
+		boolean[] inTree = new boolean[numberRecords];
+		double[] closestDistances = new double[numberRecords];
+		int[] closest = new int[numberRecords];
+		Arrays.fill(closestDistances, Double.POSITIVE_INFINITY);
+
+		int last = 0;
+		inTree[0] = true;
+		for (int e = 0; e < numberRecords - 1; e++)
+		{
+			//update closest records with record added last and pick record
+			//closest to tree, ties go to lower index
+			int next = -1;
+			for (int i = 0; i < numberRecords; i++)
+			{
+				if (inTree[i])
+					continue;
 
-		//multiply attributes of record by scaler
-		for (int i = 0; i < u.length; i++)
-			result[i] = u[i]*k;
+				double d = distance(records.get(last).attributes, records.get(i).attributes);
+				if (d < closestDistances[i])
+				{
+					closestDistances[i] = d;
+					closest[i] = last;
+				}
+
+				if (next == -1 || closestDistances[i] < closestDistances[next])
+					next = i;
+			}
+
+			//add record to tree, lengths are found like in neighbor test
+			inTree[next] = true;
+			mergeFrom[e] = closest[next];
+			mergeTo[e] = next;
+			mergeDistances[e] = Math.sqrt(closestDistances[next]);
+			last = next;
+		}
+
+		//sort edges into order in which clusters merge
+		Integer[] edges = new Integer[mergeFrom.length];
+		for (int e = 0; e < edges.length; e++)
+			edges[e] = e;
+
+		final double[] lengths = mergeDistances;
+		Arrays.sort(edges, new Comparator<Integer>()
+		{
+			public int compare(Integer e, Integer f)
+			{
+				return Double.compare(lengths[e], lengths[f]);
+			}
+		});
+
+		int[] from = new int[edges.length];
+		int[] to = new int[edges.length];
+		double[] distances = new double[edges.length];
+		for (int e = 0; e < edges.length; e++)
+		{
+			from[e] = mergeFrom[edges[e]];
+			to[e] = mergeTo[edges[e]];
+			distances[e] = mergeDistances[edges[e]];
+		}
 
-		return result;
+		mergeFrom = from;
+		mergeTo = to;
+		mergeDistances = distances;
 	}
 
 	/************************************************************************/
-	
-	//Method compute and display sum squared error
-	public void displayError()
+
+	//Method clusters records at neighbor threshold delta using dendrogram,
+	//giving the same clusters as cluster with that threshold in time near
+	//linear in number of records
+	public void clusterAt(double delta)
 	{
-		double sumError = 0;
-		double[][] centroids = getCentroids();
-		
-		//go thru all records
-		for(int i = 0; i < numberRecords; i++)
-		{
+		if (mergeDistances == null)
+			throw new IllegalStateException("dendrogram is not created or records were updated");
+
+		//forget updates and neighbor rows of earlier clustering
+		finishUpdates();
+		offsets = null;
+		neighbors = null;
+		numberNeighbors = 0;
+
+		this.delta = delta;
+		this.threshold = squaredThreshold(delta);
+
+		//each record starts as its own root
+		parents = new AtomicIntegerArray(numberRecords);
+		for (int i = 0; i < numberRecords; i++)
+			parents.set(i, i);
+
+		//merge clusters along edges no longer than delta
+		for (int e = 0; e < mergeDistances.length && mergeDistances[e] <= delta; e++)
+			link(mergeFrom[e], mergeTo[e]);
+
+		nameComponents();
+	}
+
+	/************************************************************************/
+
+	//Method finds root of record, halving path to it on the way; a failed
+	//halving only means another thread changed the path already
+	private int find(int i)
+	{
+		while (true)
+		{
+			int parent = parents.get(i);
+			if (parent == i)
+				return i;
+
+			int grandParent = parents.get(parent);
+			if (grandParent != parent)
+				parents.compareAndSet(i, parent, grandParent);
+
+			i = grandParent;
+		}
+	}
+
+	/************************************************************************/
+
+	//Method creates neighbor lists by comparing records in square tiles of
+	//the upper triangle of all pairs, so each unordered pair is compared
+	//once and tiles run in parallel; a tile keeps the records of its row
+	//and column blocks in cache while they are compared
+	private void createTiledNeighbors()
+	{
+		//list tiles on or above diagonal
+		int numberBlocks = (numberRecords + TILE_SIZE - 1)/TILE_SIZE;
+		numberChunks = numberBlocks*(numberBlocks + 1)/2;
+		tileRows = new int[numberChunks];
+		tileColumns = new int[numberChunks];
+		chunkPairs = new int[numberChunks][];
+		chunkSizes = new int[numberChunks];
+
+		int tile = 0;
+		for (int r = 0; r < numberBlocks; r++)
+			for (int c = r; c < numberBlocks; c++)
+			{
+				tileRows[tile] = r*TILE_SIZE;
+				tileColumns[tile] = c*TILE_SIZE;
+				tile++;
+			}
+
+		//find neighbor pairs of tiles
+		if (parallelism <= 1 || numberChunks <= 1)
+		{
+			for (int t = 0; t < numberChunks; t++)
+				compareTile(t);
+		}
+		else
+			pool.invoke(new ChunkTask(0, numberChunks, "tile"));
+
+		pairsCompared = (long) numberRecords*(numberRecords + 1)/2;
+		createRows();
+	}
+
+	/************************************************************************/
+
+	//Method creates neighbor lists from neighbor pairs found by chunks
+	private void createRows()
+	{
+		//count neighbors of each record, each pair gives a neighbor to both
+		//records unless a record is paired with itself
+		int[] degrees = new int[numberRecords + 1];
+		long total = 0;
+		for (int t = 0; t < numberChunks; t++)
+			for (int p = 0; p < chunkSizes[t]; p += 2)
+			{
+				int i = chunkPairs[t][p];
+				int j = chunkPairs[t][p+1];
+				degrees[i]++;
+				if (j != i)
+					degrees[j]++;
+			}
+
+		offsets = new int[numberRecords + 1];
+		for (int i = 0; i < numberRecords; i++)
+		{
+			total += degrees[i];
+			offsets[i+1] = offsets[i] + degrees[i];
+		}
+
+		if (total > Integer.MAX_VALUE - 8)
+			throw new IllegalStateException("too many neighbor pairs for neighbor lists");
+
+		//put neighbors into rows, then sort rows so neighbor lists are the
+		//same as with brute search
+		numberNeighbors = (int) total;
+		neighbors = new int[Math.max(16, numberNeighbors)];
+		int[] next = Arrays.copyOf(offsets, numberRecords);
+		for (int t = 0; t < numberChunks; t++)
+		{
+			for (int p = 0; p < chunkSizes[t]; p += 2)
+			{
+				int i = chunkPairs[t][p];
+				int j = chunkPairs[t][p+1];
+				neighbors[next[i]++] = j;
+				if (j != i)
+					neighbors[next[j]++] = i;
+			}
+
+			chunkPairs[t] = null;
+		}
+
+		for (int i = 0; i < numberRecords; i++)
+			Arrays.sort(neighbors, offsets[i], offsets[i+1]);
+
+		chunkPairs = null;
+		chunkSizes = null;
+	}
+
+	/************************************************************************/
+
+	//Method compares records of row block of tile with records of its column
+	//block, in a tile on diagonal only pairs with i <= j are compared
+	private void compareTile(int tile)
+	{
+		int rowFrom = tileRows[tile];
+		int rowTo = Math.min(numberRecords, rowFrom + TILE_SIZE);
+		int columnFrom = tileColumns[tile];
+		int columnTo = Math.min(numberRecords, columnFrom + TILE_SIZE);
+
+		int[] pairs = new int[16];
+		int size = 0;
+
+		for (int i = rowFrom; i < rowTo; i++)
+		{
+			Record u = records.get(i);
+			for (int j = Math.max(i, columnFrom); j < columnTo; j++)
+				if (neighbor(u, records.get(j)) == 1)
+				{
+					//add pair, doubling pairs if full
+					if (size == pairs.length)
+						pairs = Arrays.copyOf(pairs, 2*pairs.length);
+					pairs[size] = i;
+					pairs[size+1] = j;
+					size += 2;
+				}
+		}
+
+		chunkPairs[tile] = pairs;
+		chunkSizes[tile] = size;
+	}
+
+	/************************************************************************/
+
+	//Method decides whether neighbors are found with hashing, buckets need
+	//a positive width
+	private boolean usesHashing()
+	{
+		return search.equals("lsh") && delta > 0;
+	}
+
+	/************************************************************************/
+
+	//Method creates neighbor lists from records hashed into the same bucket
+	//in at least one hash table; a hash concatenates projections of record
+	//on random gaussian directions, shifted randomly and cut into buckets of
+	//width HASH_WIDTH*delta, so close records share buckets with high
+	//probability; candidate pairs are checked with the exact neighbor test
+	private void createHashedNeighbors()
+	{
+		Random random = new Random(hashSeed);
+		double width = HASH_WIDTH*delta;
+
+		//records of each table in order of buckets and where bucket of each
+		//record starts and ends
+		int[][] bucketRecords = new int[numberTables][numberRecords];
+		int[][] bucketFrom = new int[numberTables][numberRecords];
+		int[][] bucketTo = new int[numberTables][numberRecords];
+
+		double[][] directions = new double[numberProjections][numberAttributes];
+		double[] shifts = new double[numberProjections];
+		long[] keys = new long[numberRecords];
+
+		for (int t = 0; t < numberTables; t++)
+		{
+			//draw random projections of table
+			for (int k = 0; k < numberProjections; k++)
+			{
+				for (int j = 0; j < numberAttributes; j++)
+					directions[k][j] = random.nextGaussian();
+				shifts[k] = random.nextDouble()*width;
+			}
+
+			//hash records into 32 bits, kept above record index so sorting
+			//keys groups records of a bucket in order of index; records of
+			//different buckets colliding in 32 bits are only compared more
+			for (int i = 0; i < numberRecords; i++)
+			{
+				double[] attributes = records.get(i).attributes;
+				int hash = 17;
+				for (int k = 0; k < numberProjections; k++)
+				{
+					double projection = shifts[k];
+					for (int j = 0; j < numberAttributes; j++)
+						projection += directions[k][j]*attributes[j];
+
+					hash = 31*hash + (int) Math.floor(projection/width);
+				}
+
+				keys[i] = ((long) hash << 32) | i;
+			}
+
+			Arrays.sort(keys);
+
+			//find buckets of records
+			int from = 0;
+			for (int n = 0; n < numberRecords; n++)
+			{
+				bucketRecords[t][n] = (int) keys[n];
+				if (n + 1 == numberRecords || (keys[n+1] >>> 32) != (keys[n] >>> 32))
+				{
+					for (int m = from; m <= n; m++)
+					{
+						bucketFrom[t][bucketRecords[t][m]] = from;
+						bucketTo[t][bucketRecords[t][m]] = n + 1;
+					}
+					from = n + 1;
+				}
+			}
+		}
+
+		//compare each record with records of higher index in its buckets,
+		//a record met in several tables is compared once
+		int[] marks = new int[numberRecords];
+		Arrays.fill(marks, -1);
+		int[] pairs = new int[16];
+		int size = 0;
+		pairsCompared = 0;
+
+		for (int i = 0; i < numberRecords; i++)
+		{
+			Record u = records.get(i);
+
+			//record is its own neighbor
+			pairsCompared++;
+			if (neighbor(u, u) == 1)
+			{
+				if (size == pairs.length)
+					pairs = Arrays.copyOf(pairs, 2*pairs.length);
+				pairs[size] = i;
+				pairs[size+1] = i;
+				size += 2;
+			}
+
+			for (int t = 0; t < numberTables; t++)
+				for (int n = bucketFrom[t][i]; n < bucketTo[t][i]; n++)
+				{
+					int j = bucketRecords[t][n];
+					if (j <= i || marks[j] == i)
+						continue;
+
+					marks[j] = i;
+					pairsCompared++;
+
+					if (neighbor(u, records.get(j)) == 1)
+					{
+						//add pair, doubling pairs if full
+						if (size == pairs.length)
+							pairs = Arrays.copyOf(pairs, 2*pairs.length);
+						pairs[size] = i;
+						pairs[size+1] = j;
+						size += 2;
+					}
+				}
+		}
+
+		//pairs found by one chunk make neighbor lists
+		numberChunks = 1;
+		chunkPairs = new int[][] {pairs};
+		chunkSizes = new int[] {size};
+		createRows();
+	}
+
+	/************************************************************************/
+
+	//Method performs step on a chunk
+	private void runChunk(String step, int chunk)
+	{
+		if (step.equals("unite"))
+			uniteChunk(chunk);
+		else
+			compareTile(chunk);
+	}
+
+	/************************************************************************/
+
+	//Task performs step on a range of chunks, splitting it among threads
+	private class ChunkTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;	//version of serialized task
+		private int from;						//first chunk
+		private int to;							//chunk after last chunk
+		private String step;					//step performed on chunks
+
+		//Constructor of task
+		private ChunkTask(int from, int to, String step)
+		{
+			this.from = from;
+			this.to = to;
+			this.step = step;
+		}
+
+		//Method performs step on chunks, or splits them in half
+		protected void compute()
+		{
+			if (to - from == 1)
+				runChunk(step, from);
+			else
+			{
+				int middle = (from + to)/2;
+				invokeAll(new ChunkTask(from, middle, step), new ChunkTask(middle, to, step));
+			}
+		}
+	}
+
+	/************************************************************************/
+
+	//Method appends neighbor to neighbor lists, doubling their size if full
+	private void addNeighbor(int j)
+	{
+		if (numberNeighbors == neighbors.length)
+			neighbors = Arrays.copyOf(neighbors, 2*neighbors.length);
+
+		neighbors[numberNeighbors] = j;
+		numberNeighbors++;
+	}
+
+	/************************************************************************/
+
+	//Method decides whether two records are neighbors or not, comparing
+	//squared distance with squared threshold and stopping as soon as the
+	//partial sum exceeds it, since the sum only grows
+	private int neighbor(Record u, Record v)
+	{
+		double distance = 0;
+
+		//find squared euclidean distance between two records
+		for (int i = 0; i < u.attributes.length; i++)
+		{
+			distance += (u.attributes[i] - v.attributes[i])*
+						(u.attributes[i] - v.attributes[i]);
+
+			//records are too far apart to be neighbors
+			if (distance > threshold)
+				return 0;
+		}
+
+		//if distance is at most neighbor threshold records are neighbors,
+		//otherwise records are not neighbors
+		if (distance <= threshold)
+			return 1;
+		else
+			return 0;
+	}
+
+	/************************************************************************/
+
+	//Method finds largest squared distance whose square root is at most
+	//delta, so comparing a squared distance with it gives the same answer
+	//as comparing the distance with delta despite rounding of delta*delta
+	private double squaredThreshold(double delta)
+	{
+		//no distance is negative
+		if (delta < 0)
+			return -1;
+
+		double squared = delta*delta;
+		if (Double.isInfinite(squared))
+			return squared;
+
+		while (Math.sqrt(squared) > delta)
+			squared = Math.nextDown(squared);
+		while (Math.sqrt(Math.nextUp(squared)) <= delta)
+			squared = Math.nextUp(squared);
+
+		return squared;
+	}
+
+	/************************************************************************/
+
+	//Method clusters records by traversing adjacency bits, records without
+	//cluster names are kept as bits too, so a record passes its cluster name
+	//to 64 records at a time with one and-not of words
+	private void clusterBitset()
+	{
+		createBits();
+		initializeClusters();
+
+		//all records have no cluster names
+		int words = (numberRecords + 63)/64;
+		long[] unnamed = new long[words];
+		for (int i = 0; i < numberRecords; i++)
+			unnamed[i >> 6] |= 1L << i;
+
+		//lowest record without cluster name starts next cluster
+		int clusterName = 0;
+		for (int w = 0; w < words; w++)
+			while (unnamed[w] != 0)
+			{
+				int index = 64*w + Long.numberOfTrailingZeros(unnamed[w]);
+				assignClusterBits(index, clusterName, unnamed);
+				clusterName = clusterName + 1;
+			}
+
+		numberClusters = clusterName;
+		numberNoise = 0;
+
+		//bits are not needed after clustering, clusters do not come from
+		//neighbor rows
+		bits = null;
+		offsets = null;
+		neighbors = null;
+		numberNeighbors = 0;
+		rowsCurrent = false;
+	}
+
+	/************************************************************************/
+
+	//Method creates adjacency bits of records, bit j of row i is set if
+	//records i and j are neighbors; each unordered pair is compared once,
+	//among all records or in adjacent cells of grid
+	private void createBits()
+	{
+		int words = (numberRecords + 63)/64;
+		bits = new long[numberRecords][words];
+
+		//put records into cells of grid
+		if (usesGrid())
+			createGrid();
+
+		//coordinates of record, cell searched in grid and cells found
+		int[] center = null;
+		Cell probe = null;
+		Cell[] adjacent = null;
+		if (usesGrid())
+		{
+			center = new int[gridAttributes.length];
+			probe = new Cell(new int[gridAttributes.length]);
+			adjacent = new Cell[numberAdjacent()];
+		}
+
+		pairsCompared = 0;
+		for (int i = 0; i < numberRecords; i++)
+		{
+			if (usesGrid())
+			{
+				int numberCells = findAdjacent(i, center, probe, adjacent);
+				for (int c = 0; c < numberCells; c++)
+					for (int n = 0; n < adjacent[c].size; n++)
+						setBits(i, adjacent[c].records[n]);
+			}
+			else
+			{
+				for (int j = i; j < numberRecords; j++)
+					setBits(i, j);
+			}
+		}
+	}
+
+	/************************************************************************/
+
+	//Method sets bits of record and another record of same or higher index
+	//if they are neighbors
+	private void setBits(int i, int j)
+	{
+		if (j < i)
+			return;
+
+		pairsCompared++;
+		if (neighbor(records.get(i), records.get(j)) == 1)
+		{
+			bits[i][j >> 6] |= 1L << j;
+			bits[j][i >> 6] |= 1L << i;
+		}
+	}
+
+	/************************************************************************/
+
+	//Method assigns cluster name to a record and all records connected to it
+	//using breadth first traversal over adjacency bits, neighbors without
+	//cluster names are found a word at a time as row and not named bits
+	private void assignClusterBits(int index, int clusterName, long[] unnamed)
+	{
+		//records in traversal, each record enters once
+		int[] list = new int[16];
+		int first = 0;
+		int last = 0;
+
+		clusters[index] = clusterName;
+		unnamed[index >> 6] &= ~(1L << index);
+		list[last++] = index;
+
+		while (first < last)
+		{
+			long[] row = bits[list[first++]];
+
+			for (int w = 0; w < row.length; w++)
+			{
+				long found = row[w] & unnamed[w];
+				if (found == 0)
+					continue;
+
+				//name found records and add them to list
+				unnamed[w] &= ~found;
+				while (found != 0)
+				{
+					int j = 64*w + Long.numberOfTrailingZeros(found);
+					found &= found - 1;
+
+					clusters[j] = clusterName;
+					if (last == list.length)
+						list = Arrays.copyOf(list, 2*list.length);
+					list[last++] = j;
+				}
+			}
+		}
+	}
+
+	/************************************************************************/
+
+	//Method initializes clusters of records
+	private void initializeClusters()
+	{
+		//create array of cluster labels
+		clusters = new int[numberRecords];
+
+		//assign cluster -1 to all records
+		for (int i = 0; i < numberRecords; i++)
+			clusters[i] = -1;
+	}
+
+	/************************************************************************/
+
+	//Method assigns cluster name to a record and all records connected to it
+	//using breadth first traversal
+	private void assignCluster(int index, int clusterName)
+	{
+		//assign cluster name to record
+		clusters[index] = clusterName;
+
+		//list used in traversal
+		LinkedList<Integer> list = new LinkedList<Integer>();
+
+		//put record into list
+		list.addLast(index);
+
+		//while list has records
+		while (!list.isEmpty())
+		{
+			//remove first record from list
+			int i = list.removeFirst();
+
+			//only core records pass on cluster name
+			if (!core(i))
+				continue;
+
+			//find neighbors of record which have no cluster names
+			for (int n = offsets[i]; n < offsets[i+1]; n++)
+			{
+				int j = neighbors[n];
+
+				if (clusters[j] == -1)
+				{
+					//assign cluster name to neighbor
+					clusters[j] = clusterName;
+
+					//add neighbor to list
+					list.addLast(j);
+				}
+			}
+		}
+	}
+
+	/************************************************************************/
+
+	//Method inserts record into clustered records, connecting it with its
+	//neighbors and merging their clusters; only merged clusters other than
+	//the largest one are renamed, so cost grows with the neighborhood of the
+	//record and the clusters it joins, returns index of record
+	public int insert(double[] attributes)
+	{
+		startUpdates();
+
+		//add record, growing arrays if full
+		int i = numberRecords;
+		records.add(new Record(attributes));
+		numberRecords++;
+
+		if (numberRecords > clusters.length)
+		{
+			int capacity = Math.max(16, 2*clusters.length);
+			clusters = Arrays.copyOf(clusters, capacity);
+			lists = Arrays.copyOf(lists, capacity);
+			degrees = Arrays.copyOf(degrees, capacity);
+		}
+
+		lists[i] = new int[4];
+		degrees[i] = 0;
+
+		//find neighbors in adjacent cells of grid or among all records
+		if (usesGrid())
+		{
+			addToCell(i);
+
+			int[] center = new int[gridAttributes.length];
+			Cell probe = new Cell(new int[gridAttributes.length]);
+			Cell[] adjacent = new Cell[numberAdjacent()];
+			int numberCells = findAdjacent(i, center, probe, adjacent);
+
+			for (int c = 0; c < numberCells; c++)
+				for (int n = 0; n < adjacent[c].size; n++)
+					connect(i, adjacent[c].records[n]);
+		}
+		else
+		{
+			for (int j = 0; j < i; j++)
+				connect(i, j);
+		}
+
+		//record joins largest cluster among its neighbors, ties go to lower
+		//name, or starts a new cluster
+		int name = -1;
+		for (int n = 0; n < degrees[i]; n++)
+		{
+			int other = clusters[lists[i][n]];
+			if (name == -1 || clusterSizes[other] > clusterSizes[name] ||
+					(clusterSizes[other] == clusterSizes[name] && other < name))
+				name = other;
+		}
+
+		if (name == -1)
+		{
+			name = newName();
+			numberClusters++;
+		}
+
+		//other clusters of neighbors merge into it
+		clusters[i] = name;
+		clusterSizes[name]++;
+		for (int n = 0; n < degrees[i]; n++)
+			if (clusters[lists[i][n]] != name)
+			{
+				rename(lists[i][n], name);
+				numberClusters--;
+			}
+
+		namesOrdered = false;
+		return i;
+	}
+
+	/************************************************************************/
+
+	//Method removes record from clustered records, its cluster may split
+	//into as many clusters as it had neighbors; the cluster is traversed from
+	//its neighbors, so cost grows with the size of the cluster; indexes of
+	//other records do not change until next clustering
+	public void remove(int index)
+	{
+		startUpdates();
+		if (records.get(index) == null)
+			return;
+
+		//disconnect record from its neighbors
+		for (int n = 0; n < degrees[index]; n++)
+		{
+			int j = lists[index][n];
+			for (int m = 0; m < degrees[j]; m++)
+				if (lists[j][m] == index)
+				{
+					degrees[j]--;
+					lists[j][m] = lists[j][degrees[j]];
+					break;
+				}
+		}
+
+		//take record out of its cell
+		if (usesGrid())
+		{
+			Cell probe = new Cell(new int[gridAttributes.length]);
+			findCoordinates(records.get(index), probe.coordinates);
+
+			Cell cell = cells.get(probe);
+			for (int n = 0; n < cell.size; n++)
+				if (cell.records[n] == index)
+				{
+					cell.size--;
+					cell.records[n] = cell.records[cell.size];
+					break;
+				}
+		}
+
+		//mark record removed
+		int name = clusters[index];
+		records.set(index, null);
+		clusters[index] = -1;
+		clusterSizes[name]--;
+		numberRemoved++;
+		namesOrdered = false;
+
+		//record alone was a cluster, with one neighbor the cluster stays
+		//connected
+		if (degrees[index] == 0)
+			numberClusters--;
+		else if (degrees[index] > 1)
+		{
+			//each neighbor not reached from an earlier neighbor starts a
+			//new part of the cluster
+			for (int n = 0; n < degrees[index]; n++)
+			{
+				int j = lists[index][n];
+				if (clusters[j] == name)
+				{
+					rename(j, newName());
+					numberClusters++;
+				}
+			}
+
+			numberClusters--;
+		}
+
+		lists[index] = null;
+		degrees[index] = 0;
+	}
+
+	/************************************************************************/
+
+	//Method copies neighbor lists of records into lists which can be
+	//updated, clustering records first if needed
+	private void startUpdates()
+	{
+		if (minPoints > 0)
+			throw new IllegalStateException("records are updated only in connected clustering");
+
+		//dendrogram does not have updated records
+		mergeFrom = null;
+		mergeTo = null;
+		mergeDistances = null;
+
+		if (lists != null && rowsCurrent)
+			return;
+
+		//clusters must come from neighbor rows at current threshold, else
+		//rows are built and traversed again, dropping lists of old threshold
+		finishUpdates();
+		if (!rowsCurrent)
+			clusterRows();
+
+		//grid holds current records at current threshold
+		if (usesGrid())
+			createGrid();
+
+		//copy neighbor lists leaving out records themselves
+		lists = new int[clusters.length][];
+		degrees = new int[clusters.length];
+		for (int i = 0; i < numberRecords; i++)
+		{
+			lists[i] = new int[Math.max(4, offsets[i+1] - offsets[i])];
+			for (int n = offsets[i]; n < offsets[i+1]; n++)
+				if (neighbors[n] != i)
+				{
+					lists[i][degrees[i]] = neighbors[n];
+					degrees[i]++;
+				}
+		}
+
+		//find sizes of clusters
+		clusterSizes = new int[Math.max(16, 2*numberClusters)];
+		for (int i = 0; i < numberRecords; i++)
+			clusterSizes[clusters[i]]++;
+		nextName = numberClusters;
+
+		//neighbor lists in rows are no longer current
+		offsets = null;
+		neighbors = null;
+		numberNeighbors = 0;
+	}
+
+	/************************************************************************/
+
+	//Method connects new record with record if they are neighbors
+	private void connect(int i, int j)
+	{
+		if (j == i || records.get(j) == null ||
+				neighbor(records.get(i), records.get(j)) == 0)
+			return;
+
+		addToList(i, j);
+		addToList(j, i);
+	}
+
+	/************************************************************************/
+
+	//Method adds neighbor to neighbor list of record, doubling it if full
+	private void addToList(int i, int j)
+	{
+		if (degrees[i] == lists[i].length)
+			lists[i] = Arrays.copyOf(lists[i], 2*lists[i].length);
+
+		lists[i][degrees[i]] = j;
+		degrees[i]++;
+	}
+
+	/************************************************************************/
+
+	//Method finds unused cluster name
+	private int newName()
+	{
+		if (nextName == clusterSizes.length)
+			clusterSizes = Arrays.copyOf(clusterSizes, 2*clusterSizes.length);
+
+		clusterSizes[nextName] = 0;
+		nextName++;
+
+		return nextName - 1;
+	}
+
+	/************************************************************************/
+
+	//Method gives new name to record and all records connected to it thru
+	//records of its current cluster, using breadth first traversal
+	private void rename(int index, int name)
+	{
+		int oldName = clusters[index];
+		int size = 0;
+
+		//list used in traversal
+		LinkedList<Integer> list = new LinkedList<Integer>();
+		clusters[index] = name;
+		list.addLast(index);
+
+		while (!list.isEmpty())
+		{
+			int i = list.removeFirst();
+			size++;
+
+			for (int n = 0; n < degrees[i]; n++)
+			{
+				int j = lists[i][n];
+				if (clusters[j] == oldName)
+				{
+					clusters[j] = name;
+					list.addLast(j);
+				}
+			}
+		}
+
+		clusterSizes[oldName] -= size;
+		clusterSizes[name] += size;
+	}
+
+	/************************************************************************/
+
+	//Method names clusters in order of their first records after updates,
+	//as clustering all records again would name them
+	private void orderNames()
+	{
+		if (namesOrdered)
+			return;
+
+		int[] names = new int[nextName];
+		Arrays.fill(names, -1);
+
+		int clusterName = 0;
+		for (int i = 0; i < numberRecords; i++)
+		{
+			if (clusters[i] == -1)
+				continue;
+
+			if (names[clusters[i]] == -1)
+			{
+				names[clusters[i]] = clusterName;
+				clusterName++;
+			}
+
+			clusters[i] = names[clusters[i]];
+		}
+
+		//sizes follow names
+		int[] sizes = new int[clusterSizes.length];
+		for (int c = 0; c < nextName; c++)
+			if (names[c] != -1)
+				sizes[names[c]] = clusterSizes[c];
+
+		clusterSizes = sizes;
+		nextName = clusterName;
+		namesOrdered = true;
+	}
+
+	/************************************************************************/
+
+	//Method ends updates of records, dropping removed records so remaining
+	//records are numbered again in order
+	private void finishUpdates()
+	{
+		//lists were current instead of neighbor rows, clusters of records
+		//are kept in order of first records
+		if (lists != null)
+		{
+			rowsCurrent = false;
+			orderNames();
+		}
+
+		if (numberRemoved > 0)
+		{
+			ArrayList<Record> remaining = new ArrayList<Record>();
+			for (int i = 0; i < numberRecords; i++)
+				if (records.get(i) != null)
+				{
+					clusters[remaining.size()] = clusters[i];
+					remaining.add(records.get(i));
+				}
+
+			records = remaining;
+			numberRecords = remaining.size();
+		}
+
+		lists = null;
+		degrees = null;
+		clusterSizes = null;
+		numberRemoved = 0;
+		namesOrdered = true;
+	}
+
+	/************************************************************************/
+
+	//Method writes records and their clusters to output file
+	public void display(String outputFile) throws IOException
+	{
+		PrintWriter outFile = new PrintWriter(new BufferedWriter(new FileWriter(outputFile)));
+
+		//name clusters in order of first records after updates
+		orderNames();
+
+		//bucket records by cluster with counting sort, noise records come
+		//first with cluster label 0, records keep their order in a cluster
+		int[] starts = new int[numberClusters + 2];
+		for (int i = 0; i < numberRecords; i++)
+			if (records.get(i) != null)
+				starts[clusters[i] + 2]++;
+
+		for (int c = 1; c < starts.length; c++)
+			starts[c] += starts[c-1];
+
+		int[] order = new int[starts[starts.length - 1]];
+		for (int i = 0; i < numberRecords; i++)
+			if (records.get(i) != null)
+			{
+				order[starts[clusters[i] + 1]] = i;
+				starts[clusters[i] + 1]++;
+			}
+
+		//for each record in order of clusters
+		for (int n = 0; n < order.length; n++)
+		{
+			int i = order[n];
+
+			//write attributes of record
+			for (int j = 0; j < numberAttributes; j++)
+			{
+				outFile.print(records.get(i).attributes[j]);
+				outFile.print(' ');
+			}
+
+			//write cluster label
+			outFile.println(clusters[i]+1);
+		}
+
+		outFile.close();
+	}
+
+	/************************************************************************/
+	
+	//Method displays number of clusters
+	public void numberClusters()
+	{
+		System.out.println("Number of clusters : " + numberClusters + " .");
+
+		if (numberNoise > 0)
+			System.out.println("Number of noise records : " + numberNoise + " .");
+	}
+	
+	/************************************************************************/
+
+	//Method displays number of pairs of records compared by last neighbor
+	//search, against n^2 pairs compared by brute search
+	public void displaySearch()
+	{
+		double allPairs = (double) numberRecords*numberRecords;
+
+		if (pairsCompared < 0)
+			System.out.println("Pairs compared : not counted in union find .");
+		else
+			System.out.println("Pairs compared : " + pairsCompared + " of " + (long) allPairs +
+				" (" + (100*pairsCompared/Math.max(1, allPairs)) + " %) .");
+	}
+
+	/************************************************************************/
+
+	//Method get centroids of clusters
+	private double[][] getCentroids()
+	{
+		//centroids result, records are summed into it in one pass
+		double[][] centroids = new double[numberClusters][numberAttributes];
+
+		//create array of cluster sizes
+		int[] clusterSize = new int[numberClusters];
+
+		//for each record
+		for (int i = 0; i < numberRecords; i++)
+		{
+			//find cluster of record, noise records have none
+			int cluster = clusters[i];
+			if (cluster == -1)
+				continue;
+
+			//add record to cluster sum
+			double[] attributes = records.get(i).attributes;
+			for (int j = 0; j < numberAttributes; j++)
+				centroids[cluster][j] += attributes[j];
+
+			//increment cluster size
+			clusterSize[cluster] += 1;
+		}
+
+		//scale sum of each cluster into its centroid
+		for (int i = 0; i < numberClusters; i++)
+		{
+			double scale = 1.0/clusterSize[i];
+			for (int j = 0; j < numberAttributes; j++)
+				centroids[i][j] *= scale;
+		}
+		
+		return centroids;
+	}
+
+	/************************************************************************/
+
+	//Method finds distance between two records
+	private double distance(double[]u, double[] v)
+	{
+		double sum = 0;
+
+		//find euclidean distance square between two records
+		for (int i = 0; i < u.length; i++)
+			sum += (u[i] - v[i])*(u[i] - v[i]);
+
+		return sum;
+	}
+
+	/************************************************************************/
+
+	//Method compute and display sum squared error
+	public void displayError()
+	{
+		double sumError = 0;
+		orderNames();
+		double[][] centroids = getCentroids();
+		
+		//go thru all records except noise records
+		for(int i = 0; i < numberRecords; i++)
+		{
+			if (clusters[i] == -1)
+				continue;
+
 			//find distance between record and its centroid
 			double d = distance(records.get(i).attributes, centroids[clusters[i]]);
 			
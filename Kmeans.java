@@ -1,22 +1,179 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.lang.management.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.net.*;
  
 //K-means clustering class
 public class Kmeans
 {
 	/************************************************************************/
 
+	//Listener of iterations of clustering
+	public interface Listener
+	{
+		//Method is called after each iteration with sum squared error of
+		//records from centroids they were assigned to in the iteration
+		void iteration(int iteration, int clusterChanges, double error, double centroidMove);
+	}
+
+	/************************************************************************/
+
+	//Cell of kd-tree of records
+	private class Cell
+	{
+		private int from;						//first record of cell in order
+		private int to;							//record after last record of cell
+		private double[] lower;					//lower corner of bounding box
+		private double[] upper;					//upper corner of bounding box
+		private double[] sum;					//sum of records of cell
+		private double squares;					//sum of squared lengths of records
+		private Cell left;						//cell of lower records
+		private Cell right;						//cell of upper records
+
+		//Constructor of cell
+		private Cell(int from, int to)
+		{
+			this.from = from;
+			this.to = to;
+			this.left = null;
+			this.right = null;
+		}
+	}
+
+	/************************************************************************/
+
+	//Centroids published to readers, never changed once published, so
+	//readers use them without locking
+	private class Snapshot
+	{
+		private final double[][] centroids;		//centroids, rows are not changed
+		private final int numberCentroids;		//number of centroids
+		private final int numberAttributes;		//attributes of centroids, -1 if not known
+
+		//Constructor of snapshot
+		private Snapshot(double[][] centroids, int numberCentroids, int numberAttributes)
+		{
+			this.centroids = centroids;
+			this.numberCentroids = numberCentroids;
+			this.numberAttributes = numberAttributes;
+		}
+	}
+
+	/************************************************************************/
+
 	private int numberRecords;					//number of records
 	private int numberAttributes;				//number of attributes
 	private int numberClusters;					//number of clusters
 
 	private double[][] records;					//array of records
+	private DoubleBuffer[] segments;			//segments of mapped record file
+	private int segmentRecords;					//number of records in segment
+	private double[][] recordBuffers;			//record read from file by each chunk
+	private double[] recordBuffer;				//record read from file by this thread
 	private double[][] centroids;				//array of centroids
-	private LinkedList<double[][]> trace;		//trace of centroids
+	private double moveTolerance;				//smallest move of centroids to go on
+	private double errorTolerance;				//smallest relative error decrease to go on
+	private int maxIterations;					//largest number of iterations
+	private String emptyClusters;				//handling of empty clusters
+	private int numberIterations;				//iterations of last clustering
+	private double centroidMove;				//largest move of centroids in iteration
+	private int[] reseeded;						//records picked for empty clusters
+
+	private Cell root;							//root cell of kd-tree of records
+	private int[] order;						//records in order of cells
+	private int treeDepth;						//depth of kd-tree
+	private int[][] candidates;					//candidate centroids at each depth
+	private double[] point;						//corner or middle of a cell
+
+	private int numberRestarts;					//number of independent clusterings
+	private int[] restartSeeds;					//random seeds of restarts
+	private double[] restartErrors;				//sum squared errors of restarts
+	private long[] restartTimes;				//milliseconds taken by restarts
+	private int[] restartIterations;			//iterations of restarts
+	private int bestRestart;					//restart with least error
+
+	private String traceMode;					//trace kept: "off", "ring" or "file"
+	private int traceSize;						//iterations kept in ring of trace
+	private String traceFile;					//file of trace
+	private double[][][] trace;					//ring of trace of centroids
+	private int numberTrace;					//number of iterations traced
+	private DataOutputStream traceOut;			//stream of trace file
+
+	private volatile Snapshot model;			//centroids used by readers
+	private long[] onlineCounts;				//records seen by online centroids
+	private int onlineAttributes;				//number of attributes of online records
+	private Object onlineLock;					//lock of online updates
+
+	private static final int TRACE_SIZE = 1000;	//iterations kept in trace by default
 	
 	private int[] clusters;						//clusters of records
 	private Random rand;						//random number generator
 
+	private String assignment;					//assignment method of records
+	private String initialization;				//initialization method of centroids
+	private double[] upperBounds;				//upper bounds of distances to own centroids
+	private double[] secondBounds;				//lower bounds of distances to second centroids
+	private double[][] lowerBounds;				//lower bounds of distances to all centroids
+	private double[][] previousCentroids;		//centroids at previous assignment
+	private double[][] centroidDistances;		//distances between centroids
+	private double[] separations;				//half distances to closest other centroids
+	private double[] drift;						//moves of centroids since previous assignment
+	private double maxDrift;					//largest move of centroids
+	private double secondDrift;					//second largest move of centroids
+	private int maxDriftIndex;					//centroid with largest move
+	private boolean firstAssignment;			//bounds are not initialized yet
+
+	private int parallelism;					//number of threads
+	private ForkJoinPool pool;					//pool of threads
+	private int numberChunks;					//number of chunks of records
+	private int chunkSize;						//number of records in chunk
+	private double[][][] partialSums;			//cluster sums of each chunk
+	private int[][] partialSizes;				//cluster sizes of each chunk
+	private int[] partialChanges;				//cluster changes of each chunk
+	private double[] partialErrors;				//sum squared errors of each chunk
+	private double[] recordDistances;			//distance of last record of each chunk
+	private double iterationError;				//sum squared error of last assignment
+	private boolean errorCurrent;				//error is that of current centroids
+	private double previousError;				//sum squared error of previous assignment
+	private int previousMoved;					//centroids reseeded in previous update
+	private String role;						//"local", "worker" or "coordinator"
+	private Listener listener;					//listener of iterations
+	private double[][] clusterSums;				//sums of records of clusters
+	private int[] clusterSizes;					//number of records of clusters
+
+	private ArrayList<Long> allocations;		//bytes allocated in each iteration
+
+	private double[] minDistances;				//distances of records to closest seeds
+	private int[] nearest;						//closest seeds of records
+	private int[] seeds;						//records picked as seeds
+	private int numberSeeds;					//number of seeds
+	private int seedFrom;						//first seed added since last update
+	private double[] partialCosts;				//distances to seeds of each chunk
+	private long[] chunkSeeds;					//random seeds of chunks for sampling
+	private double samplingFactor;				//probability of sampling per distance
+	private ArrayList<ArrayList<Integer>> samples;	//records sampled in each chunk
+
+	private int batchSize;						//records in mini-batch, 0 if not used
+	private int maxBatches;						//largest number of mini-batches
+	private double batchTolerance;				//smallest move of centroids to go on
+	private int[] batchRecords;					//records of mini-batch
+	private int[] batchClusters;				//closest centroids of mini-batch
+	private long[] centroidCounts;				//records seen by each centroid
+	private double[][] batchCentroids;			//centroids before mini-batch
+
+	//measures allocations of threads
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private static final int CHUNK_SIZE = 4096;	//smallest chunk of records
+	private static final int MAX_CHUNKS = 64;	//largest number of chunks
+	private static final int ROUNDS = 5;		//sampling rounds of kmeans||
+	private static final int OVERSAMPLING = 2;	//seeds per cluster in each round
+	private static final int LEAF_SIZE = 16;	//largest number of records in leaf cell
+	private static final long SEGMENT_BYTES = 1L << 30;	//largest mapped segment
+
 	/************************************************************************/
 
 	//Constructor of Kmeans class
@@ -27,241 +184,2440 @@ public class Kmeans
 		numberAttributes = 0;
 		numberClusters = 0;
 
-		//arrays are empty
-		records = null;
-		centroids = null;
-		clusters = null;
-		rand = null;
-		
-		//create trace
-		trace = new LinkedList<double[][]>();
+		//arrays are empty
+		records = null;
+		segments = null;
+		centroids = null;
+		clusters = null;
+		rand = null;
+
+		//records are assigned by comparing with all centroids
+		assignment = "lloyd";
+
+		//centroids are initialized with random records
+		initialization = "random";
+
+		//all records are used in each iteration
+		batchSize = 0;
+		maxBatches = 0;
+		batchTolerance = 0;
+		upperBounds = null;
+		secondBounds = null;
+		lowerBounds = null;
+		previousCentroids = null;
+		centroidDistances = null;
+		separations = null;
+		drift = null;
+
+		//clustering runs in calling thread
+		parallelism = 1;
+		pool = null;
+		partialSums = null;
+		partialSizes = null;
+		partialChanges = null;
+		partialErrors = null;
+		recordDistances = null;
+		clusterSums = null;
+		clusterSizes = null;
+
+		//no iterations measured yet
+		allocations = new ArrayList<Long>();
+		
+		//clustering stops only when no records change clusters, centroids of
+		//empty clusters stay where they are
+		moveTolerance = 0;
+		errorTolerance = 0;
+		maxIterations = Integer.MAX_VALUE;
+		emptyClusters = "keep";
+		numberIterations = 0;
+
+		//records are clustered once
+		numberRestarts = 1;
+
+		//no one listens to iterations
+		listener = null;
+		errorCurrent = false;
+
+		//records loaded here are clustered here
+		role = "local";
+
+		//trace keeps last iterations
+		traceMode = "ring";
+		traceSize = TRACE_SIZE;
+		traceFile = null;
+		trace = null;
+		numberTrace = 0;
+		traceOut = null;
+
+		//no centroids are published, records of any length are accepted
+		model = new Snapshot(new double[0][], 0, -1);
+		onlineCounts = null;
+		onlineAttributes = 0;
+		onlineLock = new Object();
+	}
+
+	/************************************************************************/
+
+	//Method loads records from input file
+	public void load(String inputFile) throws IOException
+	{
+		Scanner inFile = new Scanner(new File(inputFile));
+
+		//read number of records, attributes
+		numberRecords = inFile.nextInt();
+		numberAttributes = inFile.nextInt();
+
+		//create array of records
+		records = new double[numberRecords][numberAttributes];
+		segments = null;
+
+		//for each record
+		for (int i = 0; i < numberRecords; i++)
+		{
+			//read attributes
+			for (int j = 0; j < numberAttributes; j++)
+				records[i][j] = inFile.nextDouble();
+		}
+
+		inFile.close();
+	}
+
+	/************************************************************************/
+
+	//Method converts records of input file to binary file of number of
+	//records, number of attributes and attributes of records, reading one
+	//record at a time
+	public void convertToBinary(String inputFile, String binaryFile) throws IOException
+	{
+		Scanner inFile = new Scanner(new File(inputFile));
+		DataOutputStream outFile = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(binaryFile)));
+
+		//read and write number of records, attributes
+		int numberRecords = inFile.nextInt();
+		int numberAttributes = inFile.nextInt();
+		outFile.writeInt(numberRecords);
+		outFile.writeInt(numberAttributes);
+
+		//copy attributes of records
+		for (int i = 0; i < numberRecords; i++)
+			for (int j = 0; j < numberAttributes; j++)
+				outFile.writeDouble(inFile.nextDouble());
+
+		inFile.close();
+		outFile.close();
+	}
+
+	/************************************************************************/
+
+	//Method maps records of binary file into memory instead of loading them,
+	//so only centroids, sums and clusters of records are kept in memory;
+	//mapped records are clustered with lloyd assignment and random
+	//initialization
+	public void loadMapped(String binaryFile) throws IOException
+	{
+		RandomAccessFile inFile = new RandomAccessFile(binaryFile, "r");
+		FileChannel channel = inFile.getChannel();
+
+		//read number of records, attributes
+		numberRecords = inFile.readInt();
+		numberAttributes = inFile.readInt();
+
+		//map file in segments of whole records
+		long recordBytes = 8L*numberAttributes;
+		segmentRecords = (int) Math.max(1, SEGMENT_BYTES/recordBytes);
+		int numberSegments = (numberRecords + segmentRecords - 1)/segmentRecords;
+
+		segments = new DoubleBuffer[numberSegments];
+		for (int s = 0; s < numberSegments; s++)
+		{
+			long start = 8 + s*segmentRecords*recordBytes;
+			long size = Math.min(segmentRecords, numberRecords - (long) s*segmentRecords)*recordBytes;
+			segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start, size).asDoubleBuffer();
+		}
+
+		//mapping stays valid after file is closed
+		inFile.close();
+		records = null;
+	}
+
+	/************************************************************************/
+
+	//Method returns record, read into buffer if records are mapped
+	private double[] record(int index, double[] buffer)
+	{
+		if (segments == null)
+			return records[index];
+
+		DoubleBuffer segment = segments[index/segmentRecords];
+		int offset = (index % segmentRecords)*numberAttributes;
+		for (int j = 0; j < numberAttributes; j++)
+			buffer[j] = segment.get(offset + j);
+
+		return buffer;
+	}
+
+	/************************************************************************/
+
+	//Method sets parameters of clustering
+	public void setParameters(int numberClusters, int seed)
+	{
+		//set number of clusters
+		this.numberClusters = numberClusters;
+
+		//create random number generator with seed
+		this.rand = new Random(seed);
+	}
+
+	/************************************************************************/
+
+	//Method sets parameters of clustering and assignment method, which is
+	//"lloyd" (all distances), "elkan" (bounds to every centroid),
+	//"hamerly" (bound to second closest centroid) or "filter" (kd-tree cells
+	//of records assigned as a whole)
+	public void setParameters(int numberClusters, int seed, String assignment)
+	{
+		//set number of clusters and random number generator
+		setParameters(numberClusters, seed);
+
+		//set assignment method
+		this.assignment = assignment;
+	}
+
+	/************************************************************************/
+
+	//Method sets initialization method of centroids, which is "random"
+	//(uniformly picked records), "kmeans++" (records picked with probability
+	//proportional to squared distance from picked ones) or "kmeans||"
+	//(kmeans++ over records oversampled in a few rounds)
+	public void setInitialization(String initialization)
+	{
+		this.initialization = initialization;
+	}
+
+	/************************************************************************/
+
+	//Method sets mini-batch mode: in each iteration centroids move towards
+	//a random batch of records, each with learning rate one over number of
+	//records it has seen, until largest move of a centroid is less than
+	//tolerance or number of batches reaches limit; batch size 0 turns
+	//mini-batch mode off
+	public void setMiniBatch(int batchSize, int maxBatches, double tolerance)
+	{
+		this.batchSize = batchSize;
+		this.maxBatches = maxBatches;
+		this.batchTolerance = tolerance;
+	}
+
+	/************************************************************************/
+
+	//Method sets stop conditions of clustering: it also stops when largest
+	//move of a centroid is less than move tolerance, when sum squared error
+	//decreases by less than error tolerance times previous error, or when
+	//number of iterations reaches limit; tolerances 0 are not used
+	public void setStopConditions(double moveTolerance, double errorTolerance, int maxIterations)
+	{
+		this.moveTolerance = moveTolerance;
+		this.errorTolerance = errorTolerance;
+		this.maxIterations = maxIterations;
+	}
+
+	/************************************************************************/
+
+	//Method sets handling of clusters which lose all their records: "keep"
+	//(centroid stays), "farthest" (centroid moves to record farthest from
+	//its centroid) or "random" (centroid moves to random record)
+	public void setEmptyClusters(String emptyClusters)
+	{
+		this.emptyClusters = emptyClusters;
+	}
+
+	/************************************************************************/
+
+	//Method sets number of independent clusterings run with different random
+	//seeds on threads set by setParallelism(), clustering with least sum
+	//squared error is kept
+	public void setRestarts(int numberRestarts)
+	{
+		this.numberRestarts = numberRestarts;
+	}
+
+	/************************************************************************/
+
+	//Method sets listener called after each iteration with its cluster
+	//changes, sum squared error and largest move of centroids; restarts do
+	//not call it, since their iterations would interleave
+	public void setListener(Listener listener)
+	{
+		this.listener = listener;
+	}
+
+	/************************************************************************/
+
+	//Method returns number of iterations of last clustering, or number of
+	//mini-batches if mini-batches are used
+	public int getIterations()
+	{
+		return numberIterations;
+	}
+
+	/************************************************************************/
+
+	//Method sets trace to keep copies of centroids of last iterations in a
+	//ring, size 0 turns trace off
+	public void setTrace(int size)
+	{
+		traceMode = (size > 0) ? "ring" : "off";
+		traceSize = size;
+	}
+
+	/************************************************************************/
+
+	//Method sets trace to write centroids of all iterations to binary file
+	public void setTrace(String traceFile)
+	{
+		traceMode = "file";
+		this.traceFile = traceFile;
+	}
+
+	/************************************************************************/
+
+	//Method sets number of threads used in assignment and centroid update,
+	//results do not depend on number of threads
+	public void setParallelism(int parallelism)
+	{
+		this.parallelism = parallelism;
+
+		//create pool of threads if more than one thread is used
+		if (pool != null)
+			pool.shutdown();
+		pool = (parallelism > 1) ? new ForkJoinPool(parallelism) : null;
+	}
+
+	/************************************************************************/
+
+	//Method performs k-means of clustering
+	public void cluster()
+	{
+		//run independent clusterings and keep best one if requested
+		if (numberRestarts > 1)
+		{
+			clusterRestarts();
+			return;
+		}
+
+		//initialize clusters of records
+		initializeClusters();
+
+		//create buffers used by all iterations
+		initializeBuffers();
+
+		//initialize centroids of clusters
+		initializeCentroids();
+		
+		//start trace and add initial centroids to it
+		startTrace();
+		addTrace();
+		startIterations();
+
+		//move centroids with mini-batches, then assign all records once
+		if (batchSize > 0)
+		{
+			clusterMiniBatch();
+			assignClusters();
+
+			//add to trace of centroids
+			addTrace();
+		}
+
+		//stop condition has not been reached
+		boolean stopCondition = (batchSize > 0);
+
+		//while stop condition is not reached
+		while (!stopCondition)
+		{
+			long allocated = allocatedBytes();
+
+			//assign clusters to records
+			int clusterChanges = assignClusters();
+
+			//update centroids of clusters
+			int numberMoved = updateCentroids();
+
+			//keep bytes allocated by iteration in this thread
+			allocations.add(allocatedBytes() - allocated);
+			numberIterations++;
+			
+			//add to trace of centroids
+			addTrace();
+
+			//check stop conditions and tell listener
+			stopCondition = finishIteration(clusterChanges, numberMoved);
+		}
+
+		//close trace file
+		finishTrace();
+
+		//publish centroids for prediction
+		publish();
+	}
+
+	/************************************************************************/
+
+	//Method resets state kept across iterations by finishIteration()
+	private void startIterations()
+	{
+		previousError = Double.POSITIVE_INFINITY;
+		previousMoved = 0;
+		numberIterations = 0;
+		errorCurrent = false;
+	}
+
+	/************************************************************************/
+
+	//Method ends an iteration of cluster() or clusterDistributed(): it keeps
+	//whether error of assignment is error of updated centroids, tells
+	//listener, and returns whether a stop condition is reached
+	private boolean finishIteration(int clusterChanges, int numberMoved)
+	{
+		//stop condition is reached if no records changed clusters and no
+		//centroids of empty clusters moved
+		boolean stopCondition = (clusterChanges == 0 && numberMoved == 0);
+
+		//or if limit of iterations is reached
+		if (numberIterations >= maxIterations)
+			stopCondition = true;
+
+		//or if centroids hardly moved
+		if (centroidMove < moveTolerance)
+			stopCondition = true;
+
+		//or if error found in assignment hardly decreased
+		if (errorTolerance > 0)
+		{
+			if (numberIterations > 1 &&
+					previousError - iterationError <= errorTolerance*previousError)
+				stopCondition = true;
+			previousError = iterationError;
+		}
+
+		//error of assignment is error of updated centroids if no records
+		//changed and no centroids moved to records, since then updated
+		//centroids are the ones records were assigned to
+		errorCurrent = tracksError() && clusterChanges == 0 &&
+				numberMoved == 0 && previousMoved == 0;
+		previousMoved = numberMoved;
+
+		if (listener != null)
+			listener.iteration(numberIterations, clusterChanges, iterationError, centroidMove);
+
+		return stopCondition;
+	}
+
+	/************************************************************************/
+
+	//Method runs independent clusterings concurrently over the same records
+	//and keeps the one with least sum squared error
+	private void clusterRestarts()
+	{
+		restartSeeds = new int[numberRestarts];
+		restartErrors = new double[numberRestarts];
+		restartTimes = new long[numberRestarts];
+		restartIterations = new int[numberRestarts];
+
+		//pick seeds of restarts in order, so result does not depend on threads
+		ArrayList<RestartTask> tasks = new ArrayList<RestartTask>();
+		for (int r = 0; r < numberRestarts; r++)
+		{
+			restartSeeds[r] = rand.nextInt();
+			tasks.add(new RestartTask(r));
+		}
+
+		//run restarts on a pool of threads set by parallelism
+		int numberThreads = Math.min(numberRestarts, Math.max(1, parallelism));
+		ExecutorService executor = Executors.newFixedThreadPool(numberThreads);
+
+		Kmeans best = null;
+		try
+		{
+			List<Future<Kmeans>> results = executor.invokeAll(tasks);
+
+			//keep restart with least error, first one on ties
+			for (int r = 0; r < numberRestarts; r++)
+			{
+				Kmeans run = results.get(r).get();
+				if (best == null || restartErrors[r] < restartErrors[bestRestart])
+				{
+					best = run;
+					bestRestart = r;
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new RuntimeException(e.getCause());
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+
+		//buffer reads mapped records in this thread
+		recordBuffer = new double[numberAttributes];
+
+		//use clusters and centroids of best restart
+		clusters = best.clusters;
+		centroids = best.centroids;
+		iterationError = best.iterationError;
+		errorCurrent = best.errorCurrent;
+		numberIterations = best.numberIterations;
+		allocations = best.allocations;
+
+		//trace has final centroids of best restart
+		startTrace();
+		addTrace();
+		finishTrace();
+
+		//publish centroids for prediction
+		publish();
+	}
+
+	/************************************************************************/
+
+	//Task runs one clustering with its own seed and settings of this
+	//clustering, sharing the records
+	private class RestartTask implements Callable<Kmeans>
+	{
+		private int restart;					//index of restart
+
+		//Constructor of task
+		private RestartTask(int restart)
+		{
+			this.restart = restart;
+		}
+
+		//Method runs clustering and measures its time and error
+		public Kmeans call()
+		{
+			Kmeans run = new Kmeans();
+
+			//share records, they are only read
+			run.numberRecords = numberRecords;
+			run.numberAttributes = numberAttributes;
+			run.records = records;
+			run.segments = segments;
+			run.segmentRecords = segmentRecords;
+
+			//copy settings, restarts use one thread, no trace and no
+			//listener each
+			run.setParameters(numberClusters, restartSeeds[restart], assignment);
+			run.setInitialization(initialization);
+			run.setMiniBatch(batchSize, maxBatches, batchTolerance);
+			run.setStopConditions(moveTolerance, errorTolerance, maxIterations);
+			run.setEmptyClusters(emptyClusters);
+			run.setTrace(0);
+
+			long start = System.nanoTime();
+			run.cluster();
+			restartTimes[restart] = (System.nanoTime() - start)/1000000;
+
+			restartIterations[restart] = run.numberIterations;
+			restartErrors[restart] = run.currentError();
+
+			return run;
+		}
+	}
+
+	/************************************************************************/
+
+	//Method starts trace of a clustering: creates empty ring, whose slots are
+	//allocated as iterations fill them, or opens trace file
+	private void startTrace()
+	{
+		numberTrace = 0;
+		trace = null;
+
+		try
+		{
+			if (traceMode.equals("ring"))
+				trace = new double[traceSize][][];
+			else if (traceMode.equals("file"))
+			{
+				traceOut = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(traceFile)));
+
+				//write number of clusters, attributes
+				traceOut.writeInt(numberClusters);
+				traceOut.writeInt(numberAttributes);
+			}
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/************************************************************************/
+
+	//Method adds copy of centroids to trace
+	private void addTrace()
+	{
+		try
+		{
+			if (traceMode.equals("ring"))
+			{
+				//overwrite oldest iteration in ring, or fill a new slot
+				int slot = numberTrace % traceSize;
+				if (trace[slot] == null)
+					trace[slot] = new double[numberClusters][numberAttributes];
+				double[][] copy = trace[slot];
+				for (int i = 0; i < numberClusters; i++)
+					System.arraycopy(centroids[i], 0, copy[i], 0, numberAttributes);
+			}
+			else if (traceMode.equals("file"))
+			{
+				for (int i = 0; i < numberClusters; i++)
+					for (int j = 0; j < numberAttributes; j++)
+						traceOut.writeDouble(centroids[i][j]);
+			}
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+
+		numberTrace++;
+	}
+
+	/************************************************************************/
+
+	//Method closes trace file
+	private void finishTrace()
+	{
+		if (traceOut == null)
+			return;
+
+		try
+		{
+			traceOut.close();
+			traceOut = null;
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/************************************************************************/
+
+	//Method moves centroids towards random batches of records, counting
+	//batches as iterations
+	private void clusterMiniBatch()
+	{
+		//centroids have seen no records
+		Arrays.fill(centroidCounts, 0);
+
+		for (int batch = 0; batch < maxBatches; batch++)
+		{
+			long allocated = allocatedBytes();
+
+			//pick records of batch and find their closest centroids before
+			//any centroid moves
+			for (int b = 0; b < batchSize; b++)
+			{
+				batchRecords[b] = rand.nextInt(numberRecords);
+				batchClusters[b] = closestLloyd(record(batchRecords[b], recordBuffer), 0);
+			}
+
+			//keep centroids to measure their moves
+			for (int i = 0; i < numberClusters; i++)
+				System.arraycopy(centroids[i], 0, batchCentroids[i], 0, numberAttributes);
+
+			//move closest centroid towards each record of batch
+			for (int b = 0; b < batchSize; b++)
+			{
+				double[] record = record(batchRecords[b], recordBuffer);
+				double[] centroid = centroids[batchClusters[b]];
+
+				centroidCounts[batchClusters[b]] += 1;
+				double rate = 1.0/centroidCounts[batchClusters[b]];
+
+				for (int j = 0; j < numberAttributes; j++)
+					centroid[j] = (1 - rate)*centroid[j] + rate*record[j];
+			}
+
+			//find largest move of centroids
+			double maxMove = 0;
+			for (int i = 0; i < numberClusters; i++)
+				maxMove = Math.max(maxMove, distance(batchCentroids[i], centroids[i]));
+
+			//keep bytes allocated by batch in this thread
+			allocations.add(allocatedBytes() - allocated);
+			numberIterations++;
+
+			//stop if centroids hardly moved
+			if (Math.sqrt(maxMove) < batchTolerance)
+				break;
+		}
+	}
+
+	/************************************************************************/
+
+	//Method initializes clusters of records
+	private void initializeClusters()
+	{
+		//create array of cluster labels
+		clusters = new int[numberRecords];
+
+		//assign cluster -1 to all records
+		for (int i = 0; i < numberRecords; i++)
+			clusters[i] = -1;
+	}
+
+	/************************************************************************/
+
+	//Method creates buffers of sums, sizes and bounds, so that iterations
+	//update them in place and allocate nothing
+	private void initializeBuffers()
+	{
+		//split records into chunks, chunks depend only on number of records
+		chunkSize = Math.max(CHUNK_SIZE, (numberRecords + MAX_CHUNKS - 1)/MAX_CHUNKS);
+		numberChunks = Math.max(1, (numberRecords + chunkSize - 1)/chunkSize);
+
+		//create sums and sizes of clusters for each chunk and in total
+		partialSums = new double[numberChunks][numberClusters][numberAttributes];
+		partialSizes = new int[numberChunks][numberClusters];
+		partialChanges = new int[numberChunks];
+		partialErrors = new double[numberChunks];
+		recordDistances = new double[numberChunks];
+		clusterSums = new double[numberClusters][numberAttributes];
+		clusterSizes = new int[numberClusters];
+
+		//create bounds if assignment uses them
+		if (usesBounds())
+		{
+			upperBounds = new double[numberRecords];
+			if (assignment.equals("elkan"))
+				lowerBounds = new double[numberRecords][numberClusters];
+			else
+				secondBounds = new double[numberRecords];
+
+			previousCentroids = new double[numberClusters][numberAttributes];
+			centroidDistances = new double[numberClusters][numberClusters];
+			separations = new double[numberClusters];
+			drift = new double[numberClusters];
+
+			//on first assignment all records need all distances
+			firstAssignment = true;
+		}
+
+		//create kd-tree of records if filtering is used
+		if (usesTree())
+			createTree();
+
+		//create records read from file by chunks and by this thread
+		recordBuffers = new double[numberChunks][numberAttributes];
+		recordBuffer = new double[numberAttributes];
+
+		//create batches if mini-batch mode is used
+		if (batchSize > 0)
+		{
+			batchRecords = new int[batchSize];
+			batchClusters = new int[batchSize];
+			centroidCounts = new long[numberClusters];
+			batchCentroids = new double[numberClusters][numberAttributes];
+		}
+
+		//create records picked for empty clusters
+		reseeded = new int[numberClusters];
+
+		//forget measurements of previous clustering
+		allocations.clear();
+	}
+
+	/************************************************************************/
+
+	//Method initializes centroids of clusters
+	private void initializeCentroids()
+	{
+		//create array of centroids
+		centroids = new double[numberClusters][numberAttributes];
+
+		//pick records far from each other if requested
+		if (!initialization.equals("random") && segments == null)
+		{
+			if (initialization.equals("kmeans++"))
+				initializePlusPlus();
+			else
+				initializeParallel();
+
+			//distances to seeds are not needed any more
+			minDistances = null;
+			nearest = null;
+			return;
+		}
+
+		//for each cluster
+		for (int i = 0; i < numberClusters; i++)
+		{
+			//randomly pick a record
+			int index = rand.nextInt(numberRecords);
+
+			//use record as centroid
+			double[] record = record(index, recordBuffer);
+			for (int j = 0; j < numberAttributes; j++)
+				centroids[i][j] = record[j];
+		}
+	}
+
+	/************************************************************************/
+
+	//Method creates distances of records to closest seeds and empty seeds
+	private void initializeSeeds()
+	{
+		minDistances = new double[numberRecords];
+		nearest = new int[numberRecords];
+		partialCosts = new double[numberChunks];
+		Arrays.fill(minDistances, Double.POSITIVE_INFINITY);
+
+		seeds = new int[numberClusters];
+		numberSeeds = 0;
+		seedFrom = 0;
+	}
+
+	/************************************************************************/
+
+	//Method initializes centroids with kmeans++: each next centroid is a
+	//record picked with probability proportional to its squared distance
+	//from closest centroid picked so far
+	private void initializePlusPlus()
+	{
+		initializeSeeds();
+
+		//first centroid is picked uniformly
+		addSeed(rand.nextInt(numberRecords));
+
+		while (numberSeeds < numberClusters)
+		{
+			//update distances of records with last seed
+			runChunks("seed");
+
+			//pick record by its distance
+			addSeed(sampleRecord());
+		}
+
+		//use seeds as centroids
+		for (int i = 0; i < numberClusters; i++)
+			System.arraycopy(records[seeds[i]], 0, centroids[i], 0, numberAttributes);
+	}
+
+	/************************************************************************/
+
+	//Method initializes centroids with kmeans||: in each round every record
+	//is sampled independently with probability proportional to its squared
+	//distance, then sampled records weighted by number of records closest to
+	//them are reduced to centroids with kmeans++
+	private void initializeParallel()
+	{
+		initializeSeeds();
+		chunkSeeds = new long[numberChunks];
+		samples = new ArrayList<ArrayList<Integer>>();
+		for (int c = 0; c < numberChunks; c++)
+			samples.add(new ArrayList<Integer>());
+
+		//first seed is picked uniformly
+		addSeed(rand.nextInt(numberRecords));
+		runChunks("seed");
+
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			//stop if all records are seeds
+			double cost = totalCost();
+			if (cost == 0)
+				break;
+
+			//sample records in each chunk with its own random seed, so result
+			//does not depend on number of threads
+			samplingFactor = OVERSAMPLING*numberClusters/cost;
+			for (int c = 0; c < numberChunks; c++)
+				chunkSeeds[c] = rand.nextLong();
+			runChunks("sample");
+
+			//add samples as seeds in order of chunks
+			for (int c = 0; c < numberChunks; c++)
+				for (int index : samples.get(c))
+					addSeed(index);
+
+			//update distances of records with new seeds
+			runChunks("seed");
+		}
+
+		//weight of seed is number of records closest to it
+		double[] weights = new double[numberSeeds];
+		for (int i = 0; i < numberRecords; i++)
+			weights[nearest[i]] += 1;
+
+		//if there are too few seeds use them all and pick rest uniformly
+		if (numberSeeds <= numberClusters)
+		{
+			for (int i = 0; i < numberClusters; i++)
+			{
+				int index = (i < numberSeeds) ? seeds[i] : rand.nextInt(numberRecords);
+				System.arraycopy(records[index], 0, centroids[i], 0, numberAttributes);
+			}
+			return;
+		}
+
+		//reduce seeds to centroids with weighted kmeans++
+		double[] seedDistances = new double[numberSeeds];
+		Arrays.fill(seedDistances, Double.POSITIVE_INFINITY);
+
+		int picked = sampleWeighted(weights, null);
+		for (int i = 0; i < numberClusters; i++)
+		{
+			System.arraycopy(records[seeds[picked]], 0, centroids[i], 0, numberAttributes);
+
+			//update distances of seeds with picked seed
+			for (int s = 0; s < numberSeeds; s++)
+				seedDistances[s] = Math.min(seedDistances[s],
+						distance(records[seeds[s]], records[seeds[picked]]));
+
+			if (i + 1 < numberClusters)
+				picked = sampleWeighted(weights, seedDistances);
+		}
+	}
+
+	/************************************************************************/
+
+	//Method adds record to seeds
+	private void addSeed(int index)
+	{
+		if (numberSeeds == seeds.length)
+			seeds = Arrays.copyOf(seeds, 2*seeds.length);
+
+		seeds[numberSeeds] = index;
+		numberSeeds++;
+	}
+
+	/************************************************************************/
+
+	//Method updates distances of records of a chunk with seeds added since
+	//last update, and sums distances of chunk
+	private void seedChunk(int chunk)
+	{
+		double cost = 0;
+
+		int end = Math.min(numberRecords, (chunk + 1)*chunkSize);
+		for (int i = chunk*chunkSize; i < end; i++)
+		{
+			for (int s = seedFrom; s < numberSeeds; s++)
+			{
+				double distance = distance(records[i], records[seeds[s]]);
+
+				if (distance < minDistances[i])
+				{
+					minDistances[i] = distance;
+					nearest[i] = s;
+				}
+			}
+
+			cost += minDistances[i];
+		}
+
+		partialCosts[chunk] = cost;
+	}
+
+	/************************************************************************/
+
+	//Method samples records of a chunk independently with probability
+	//proportional to their distances
+	private void sampleChunk(int chunk)
+	{
+		Random random = new Random(chunkSeeds[chunk]);
+		ArrayList<Integer> sample = samples.get(chunk);
+		sample.clear();
+
+		int end = Math.min(numberRecords, (chunk + 1)*chunkSize);
+		for (int i = chunk*chunkSize; i < end; i++)
+			if (random.nextDouble() < samplingFactor*minDistances[i])
+				sample.add(i);
+	}
+
+	/************************************************************************/
+
+	//Method finds sum of distances of records to closest seeds, and marks
+	//seeds as used in distances
+	private double totalCost()
+	{
+		double cost = 0;
+		for (int c = 0; c < numberChunks; c++)
+			cost += partialCosts[c];
+
+		seedFrom = numberSeeds;
+
+		return cost;
+	}
+
+	/************************************************************************/
+
+	//Method picks record with probability proportional to its distance to
+	//closest seed
+	private int sampleRecord()
+	{
+		double cost = totalCost();
+
+		//if all records coincide with seeds pick uniformly
+		if (cost == 0)
+			return rand.nextInt(numberRecords);
+
+		double r = rand.nextDouble()*cost;
+
+		//find chunk of picked record, then record within chunk
+		int last = -1;
+		for (int c = 0; c < numberChunks; c++)
+		{
+			if (r >= partialCosts[c] && c + 1 < numberChunks)
+			{
+				r -= partialCosts[c];
+				continue;
+			}
+
+			int end = Math.min(numberRecords, (c + 1)*chunkSize);
+			for (int i = c*chunkSize; i < end; i++)
+				if (minDistances[i] > 0)
+				{
+					last = i;
+					r -= minDistances[i];
+					if (r < 0)
+						return i;
+				}
+
+			if (last >= 0)
+				return last;
+		}
+
+		return (last >= 0) ? last : rand.nextInt(numberRecords);
+	}
+
+	/************************************************************************/
+
+	//Method picks seed with probability proportional to its weight times its
+	//distance, or to its weight alone if distances are not given
+	private int sampleWeighted(double[] weights, double[] distances)
+	{
+		double total = 0;
+		for (int s = 0; s < numberSeeds; s++)
+			total += weights[s]*(distances == null ? 1 : distances[s]);
+
+		//if all seeds are picked already pick uniformly
+		if (total == 0)
+			return rand.nextInt(numberSeeds);
+
+		double r = rand.nextDouble()*total;
+
+		int last = 0;
+		for (int s = 0; s < numberSeeds; s++)
+		{
+			double weight = weights[s]*(distances == null ? 1 : distances[s]);
+			if (weight > 0)
+			{
+				last = s;
+				r -= weight;
+				if (r < 0)
+					return s;
+			}
+		}
+
+		return last;
+	}
+
+	/************************************************************************/
+
+	//Method assigns clusters to records, and sums records of each cluster
+	//within each chunk of records
+	private int assignClusters()
+	{
+		//go thru cells of kd-tree if requested
+		if (usesTree())
+			return assignClustersFilter();
+
+		//find distances between centroids and moves of centroids
+		if (usesBounds())
+			prepareBounds();
+
+		//go thru chunks in this thread or in parallel
+		runChunks("assign");
+
+		//keep centroids used by bounds
+		if (usesBounds())
+		{
+			savePreviousCentroids();
+			firstAssignment = false;
+		}
+
+		//add up cluster changes and errors of chunks
+		int clusterChanges = 0;
+		iterationError = 0;
+		for (int c = 0; c < numberChunks; c++)
+		{
+			clusterChanges += partialChanges[c];
+			iterationError += partialErrors[c];
+		}
+
+		//return number of cluster changes
+		return clusterChanges;
+	}
+
+	/************************************************************************/
+
+	//Method decides whether assignment keeps bounds of distances, which is
+	//not done for mapped records
+	private boolean usesBounds()
+	{
+		return segments == null &&
+				(assignment.equals("elkan") || assignment.equals("hamerly"));
+	}
+
+	/************************************************************************/
+
+	//Method decides whether assignment filters cells of kd-tree, which is
+	//not done for mapped records
+	private boolean usesTree()
+	{
+		return segments == null && assignment.equals("filter");
+	}
+
+	/************************************************************************/
+
+	//Method decides whether assignment finds exact sum squared error; it
+	//always does unless bounds skip records, then it does only if error is
+	//used, at a cost of one distance per skipped record; workers always do,
+	//since their coordinator cannot find error itself
+	private boolean tracksError()
+	{
+		return !usesBounds() || listener != null || errorTolerance > 0 ||
+				!role.equals("local");
+	}
+
+	/************************************************************************/
+
+	//Method assigns clusters to records of a chunk and sums them up
+	private void assignChunk(int chunk)
+	{
+		double[][] clusterSum = partialSums[chunk];
+		int[] clusterSize = partialSizes[chunk];
+		int clusterChanges = 0;
+		double error = 0;
+
+		//empty sums and sizes of previous iteration
+		for (int i = 0; i < numberClusters; i++)
+		{
+			Arrays.fill(clusterSum[i], 0);
+			clusterSize[i] = 0;
+		}
+
+		//go thru records of chunk
+		int end = Math.min(numberRecords, (chunk + 1)*chunkSize);
+		for (int i = chunk*chunkSize; i < end; i++)
+		{
+			double[] record = record(i, recordBuffers[chunk]);
+
+			//find closest centroid
+			int minIndex;
+			if (!usesBounds())
+				minIndex = closestLloyd(record, chunk);
+			else if (assignment.equals("elkan"))
+				minIndex = closestElkan(i, chunk);
+			else
+				minIndex = closestHamerly(i, chunk);
+
+			//add distance to closest centroid to error
+			error += recordDistances[chunk];
+
+			//if closest cluster is different from current cluster
+			if (clusters[i] != minIndex)
+			{
+				//change chluster of record
+				clusters[i] = minIndex;
+				//keep count of cluster changes
+				clusterChanges++;
+			}
+
+			//add record to cluster sum
+			for (int j = 0; j < numberAttributes; j++)
+				clusterSum[minIndex][j] += record[j];
+
+			//increment cluster size
+			clusterSize[minIndex] += 1;
+		}
+
+		partialChanges[chunk] = clusterChanges;
+		partialErrors[chunk] = error;
+	}
+
+	/************************************************************************/
+
+	//Method creates kd-tree of records and buffers used by filtering
+	private void createTree()
+	{
+		order = new int[numberRecords];
+		for (int i = 0; i < numberRecords; i++)
+			order[i] = i;
+
+		treeDepth = 0;
+		root = createCell(0, numberRecords, 0);
+
+		//candidates at each depth, and point used to compare them
+		candidates = new int[treeDepth + 1][numberClusters];
+		point = new double[numberAttributes];
+	}
+
+	/************************************************************************/
+
+	//Method creates cell of records between two positions of order, and
+	//splits it at middle of its widest side
+	private Cell createCell(int from, int to, int depth)
+	{
+		Cell cell = new Cell(from, to);
+		cell.lower = new double[numberAttributes];
+		cell.upper = new double[numberAttributes];
+		cell.sum = new double[numberAttributes];
+
+		treeDepth = Math.max(treeDepth, depth);
+
+		//find bounding box and sum of records
+		Arrays.fill(cell.lower, Double.POSITIVE_INFINITY);
+		Arrays.fill(cell.upper, Double.NEGATIVE_INFINITY);
+		for (int i = from; i < to; i++)
+			for (int j = 0; j < numberAttributes; j++)
+			{
+				double value = records[order[i]][j];
+				cell.lower[j] = Math.min(cell.lower[j], value);
+				cell.upper[j] = Math.max(cell.upper[j], value);
+				cell.sum[j] += value;
+				cell.squares += value*value;
+			}
+
+		//find widest side
+		int side = 0;
+		for (int j = 1; j < numberAttributes; j++)
+			if (cell.upper[j] - cell.lower[j] > cell.upper[side] - cell.lower[side])
+				side = j;
+
+		//small cells and cells of equal records are leaves
+		if (to - from <= LEAF_SIZE || cell.upper[side] == cell.lower[side])
+			return cell;
+
+		//split at middle, or slide split to closest record if a side is empty
+		double split = 0.5*(cell.lower[side] + cell.upper[side]);
+		int middle = partition(from, to, side, split);
+		if (middle == from)
+			middle = partition(from, to, side, Math.nextUp(cell.lower[side]));
+		else if (middle == to)
+			middle = partition(from, to, side, cell.upper[side]);
+
+		cell.left = createCell(from, middle, depth + 1);
+		cell.right = createCell(middle, to, depth + 1);
+
+		return cell;
+	}
+
+	/************************************************************************/
+
+	//Method moves records with attribute less than split before others, and
+	//returns position of first other record
+	private int partition(int from, int to, int side, double split)
+	{
+		int i = from, j = to - 1;
+
+		while (i <= j)
+		{
+			if (records[order[i]][side] < split)
+				i++;
+			else
+			{
+				int temp = order[i];
+				order[i] = order[j];
+				order[j] = temp;
+				j--;
+			}
+		}
+
+		return i;
+	}
+
+	/************************************************************************/
+
+	//Method assigns clusters to records by filtering candidate centroids
+	//down the kd-tree, so a cell with one candidate left is assigned as a
+	//whole using its sum
+	private int assignClustersFilter()
+	{
+		//empty sums, sizes, changes and errors, cells are summed into first
+		//chunk
+		for (int c = 0; c < numberChunks; c++)
+		{
+			for (int i = 0; i < numberClusters; i++)
+			{
+				Arrays.fill(partialSums[c][i], 0);
+				partialSizes[c][i] = 0;
+			}
+			partialChanges[c] = 0;
+			partialErrors[c] = 0;
+		}
+
+		//all centroids are candidates at root
+		for (int i = 0; i < numberClusters; i++)
+			candidates[0][i] = i;
+
+		int clusterChanges = filter(root, 0, numberClusters);
+		iterationError = partialErrors[0];
+
+		return clusterChanges;
+	}
+
+	/************************************************************************/
+
+	//Method filters candidates of a cell, and assigns cell if one candidate
+	//is left, and returns number of cluster changes in cell
+	private int filter(Cell cell, int depth, int numberCandidates)
+	{
+		int[] list = candidates[depth];
+		int clusterChanges = 0;
+
+		//if one candidate is left, assign whole cell to it
+		if (numberCandidates == 1)
+		{
+			int cluster = list[0];
+
+			for (int j = 0; j < numberAttributes; j++)
+				partialSums[0][cluster][j] += cell.sum[j];
+			partialSizes[0][cluster] += cell.to - cell.from;
+
+			//error of cell is sum of |x|^2 - 2 c.x + |c|^2 over its records
+			double[] centroid = centroids[cluster];
+			double error = cell.squares;
+			for (int j = 0; j < numberAttributes; j++)
+				error += (cell.to - cell.from)*centroid[j]*centroid[j] - 2*centroid[j]*cell.sum[j];
+			partialErrors[0] += Math.max(0, error);
+
+			for (int i = cell.from; i < cell.to; i++)
+				if (clusters[order[i]] != cluster)
+				{
+					clusters[order[i]] = cluster;
+					clusterChanges++;
+				}
+
+			return clusterChanges;
+		}
+
+		//if cell is a leaf, assign each record to closest candidate
+		if (cell.left == null)
+		{
+			for (int i = cell.from; i < cell.to; i++)
+			{
+				int r = order[i];
+
+				//candidates are in order, so ties go to lower index as in lloyd
+				int minIndex = list[0];
+				double minDistance = distance(records[r], centroids[minIndex]);
+				for (int c = 1; c < numberCandidates; c++)
+				{
+					double distance = distance(records[r], centroids[list[c]]);
+					if (distance < minDistance)
+					{
+						minDistance = distance;
+						minIndex = list[c];
+					}
+				}
+
+				for (int j = 0; j < numberAttributes; j++)
+					partialSums[0][minIndex][j] += records[r][j];
+				partialSizes[0][minIndex] += 1;
+				partialErrors[0] += minDistance;
+
+				if (clusters[r] != minIndex)
+				{
+					clusters[r] = minIndex;
+					clusterChanges++;
+				}
+			}
+
+			return clusterChanges;
+		}
+
+		//find candidate closest to middle of cell
+		for (int j = 0; j < numberAttributes; j++)
+			point[j] = 0.5*(cell.lower[j] + cell.upper[j]);
+
+		int closest = list[0];
+		double minDistance = distance(point, centroids[closest]);
+		for (int c = 1; c < numberCandidates; c++)
+		{
+			double distance = distance(point, centroids[list[c]]);
+			if (distance < minDistance)
+			{
+				minDistance = distance;
+				closest = list[c];
+			}
+		}
+
+		//keep candidates which may be as close as closest one to some record
+		int[] next = candidates[depth + 1];
+		int numberNext = 0;
+		for (int c = 0; c < numberCandidates; c++)
+			if (list[c] == closest || !farther(list[c], closest, cell))
+			{
+				next[numberNext] = list[c];
+				numberNext++;
+			}
+
+		//filter children with remaining candidates
+		clusterChanges += filter(cell.left, depth + 1, numberNext);
+		clusterChanges += filter(cell.right, depth + 1, numberNext);
+
+		return clusterChanges;
+	}
+
+	/************************************************************************/
+
+	//Method decides whether centroid is farther than closest centroid from
+	//all points of cell, by checking corner of cell in direction of centroid
+	private boolean farther(int centroid, int closest, Cell cell)
+	{
+		double[] u = centroids[centroid];
+		double[] v = centroids[closest];
+
+		//find corner of cell most favorable to centroid
+		for (int j = 0; j < numberAttributes; j++)
+			point[j] = (u[j] > v[j]) ? cell.upper[j] : cell.lower[j];
+
+		return distance(u, point) > distance(v, point);
+	}
+
+	/************************************************************************/
+
+	//Method performs step ("assign", "seed" or "sample") on all chunks, in
+	//this thread or in parallel
+	private void runChunks(String step)
+	{
+		if (parallelism <= 1)
+		{
+			for (int c = 0; c < numberChunks; c++)
+				runChunk(step, c);
+		}
+		else
+			pool.invoke(new ChunkTask(0, numberChunks, step));
+	}
+
+	/************************************************************************/
+
+	//Method performs step on a chunk
+	private void runChunk(String step, int chunk)
+	{
+		if (step.equals("assign"))
+			assignChunk(chunk);
+		else if (step.equals("seed"))
+			seedChunk(chunk);
+		else
+			sampleChunk(chunk);
+	}
+
+	/************************************************************************/
+
+	//Task performs step on a range of chunks, splitting it among threads
+	private class ChunkTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;	//version of serialized task
+		private int from;						//first chunk
+		private int to;							//chunk after last chunk
+		private String step;					//step performed on chunks
+
+		//Constructor of task
+		private ChunkTask(int from, int to, String step)
+		{
+			this.from = from;
+			this.to = to;
+			this.step = step;
+		}
+
+		//Method performs step on chunks, or splits them in half
+		protected void compute()
+		{
+			if (to - from == 1)
+				runChunk(step, from);
+			else
+			{
+				int middle = (from + to)/2;
+				invokeAll(new ChunkTask(from, middle, step), new ChunkTask(middle, to, step));
+			}
+		}
+	}
+
+	/************************************************************************/
+
+	//Method finds closest centroid of record by comparing with all centroids,
+	//and keeps distance to it for chunk
+	private int closestLloyd(double[] record, int chunk)
+	{
+		//find distance between record and first centroid
+		double minDistance = distance(record, centroids[0]);
+		int minIndex = 0;
+
+		//go thru other centroids and find closest centroid
+		for (int j = 1; j < numberClusters; j++)
+		{
+			//find distance between record and centroid
+			double distance = distance(record, centroids[j]);
+
+			//if distance is less than minimum, update minimum
+			if (distance < minDistance)
+			{
+				minDistance = distance;
+				minIndex = j;
+			}
+		}
+
+		recordDistances[chunk] = minDistance;
+		return minIndex;
+	}
+
+	/************************************************************************/
+
+	//Method prepares bounds for assignment: finds distances between
+	//centroids and how far centroids moved since previous assignment
+	private void prepareBounds()
+	{
+		//find distances between centroids
+		findSeparations();
+
+		//centroids have not moved before first assignment
+		if (!firstAssignment)
+			findDrift();
+
+		//find largest and second largest moves
+		maxDriftIndex = 0;
+		maxDrift = 0;
+		secondDrift = 0;
+		for (int j = 0; j < numberClusters; j++)
+		{
+			if (drift[j] > maxDrift)
+			{
+				secondDrift = maxDrift;
+				maxDrift = drift[j];
+				maxDriftIndex = j;
+			}
+			else if (drift[j] > secondDrift)
+				secondDrift = drift[j];
+		}
+	}
+
+	/************************************************************************/
+
+	//Method finds closest centroid of record keeping a lower bound of distance
+	//to every centroid, so a centroid is skipped when its bound or half its
+	//distance to the current centroid exceeds distance to current centroid
+	private int closestElkan(int i, int chunk)
+	{
+		//on first assignment find all distances and initialize bounds
+		if (firstAssignment)
+		{
+			double minDistance = 0;
+			int minIndex = 0;
+
+			//distance to each centroid is its exact lower bound
+			for (int j = 0; j < numberClusters; j++)
+			{
+				double distance = distance(records[i], centroids[j]);
+				lowerBounds[i][j] = Math.sqrt(distance);
+
+				if (j == 0 || distance < minDistance)
+				{
+					minDistance = distance;
+					minIndex = j;
+				}
+			}
+
+			upperBounds[i] = lowerBounds[i][minIndex];
+			recordDistances[chunk] = minDistance;
+			return minIndex;
+		}
+
+		int current = clusters[i];
+
+		//move bounds by drift of centroids
+		upperBounds[i] += drift[current];
+		for (int j = 0; j < numberClusters; j++)
+			lowerBounds[i][j] = Math.max(0, lowerBounds[i][j] - drift[j]);
+
+		//record stays if it is closer than half way to any other centroid
+		if (upperBounds[i] < separations[current])
+		{
+			skippedDistance(i, current, chunk);
+			return current;
+		}
+
+		int minIndex = current;
+		double minDistance = 0;
+		boolean tight = false;
+
+		//go thru other centroids which may be closer
+		for (int j = 0; j < numberClusters; j++)
+		{
+			if (j == minIndex || !candidate(i, minIndex, j))
+				continue;
+
+			//make upper bound exact and check centroid again
+			if (!tight)
+			{
+				minDistance = distance(records[i], centroids[minIndex]);
+				upperBounds[i] = Math.sqrt(minDistance);
+				lowerBounds[i][minIndex] = upperBounds[i];
+				tight = true;
+
+				if (!candidate(i, minIndex, j))
+					continue;
+			}
+
+			//find distance to centroid, ties go to lower index as in lloyd
+			double distance = distance(records[i], centroids[j]);
+			lowerBounds[i][j] = Math.sqrt(distance);
+
+			if (distance < minDistance || (distance == minDistance && j < minIndex))
+			{
+				minDistance = distance;
+				minIndex = j;
+				upperBounds[i] = lowerBounds[i][j];
+			}
+		}
+
+		//keep distance to closest centroid
+		if (tight)
+			recordDistances[chunk] = minDistance;
+		else
+			skippedDistance(i, minIndex, chunk);
+
+		return minIndex;
+	}
+
+	/************************************************************************/
+
+	//Method decides whether centroid may be at least as close to record as
+	//its current centroid
+	private boolean candidate(int record, int current, int centroid)
+	{
+		double upper = upperBounds[record];
+
+		return upper >= lowerBounds[record][centroid] &&
+				upper >= 0.5*centroidDistances[current][centroid];
+	}
+
+	/************************************************************************/
+
+	//Method finds closest centroid of record keeping a single lower bound of
+	//distance to second closest centroid, so all distances are found only
+	//when upper bound exceeds lower bound
+	private int closestHamerly(int i, int chunk)
+	{
+		int current = clusters[i];
+
+		if (!firstAssignment)
+		{
+			//move bounds by drift of centroids
+			upperBounds[i] += drift[current];
+			secondBounds[i] -= (current == maxDriftIndex) ? secondDrift : maxDrift;
+
+			//record stays if it is closer than any other centroid can be
+			double bound = Math.max(separations[current], secondBounds[i]);
+			if (upperBounds[i] < bound)
+			{
+				skippedDistance(i, current, chunk);
+				return current;
+			}
+
+			//make upper bound exact and check again
+			double distance = distance(records[i], centroids[current]);
+			upperBounds[i] = Math.sqrt(distance);
+			if (upperBounds[i] < bound)
+			{
+				recordDistances[chunk] = distance;
+				return current;
+			}
+		}
+
+		//find closest and second closest centroids
+		double minDistance = 0;
+		double secondDistance = Double.POSITIVE_INFINITY;
+		int minIndex = 0;
+
+		for (int j = 0; j < numberClusters; j++)
+		{
+			double distance = distance(records[i], centroids[j]);
+
+			if (j == 0 || distance < minDistance)
+			{
+				if (j > 0)
+					secondDistance = minDistance;
+				minDistance = distance;
+				minIndex = j;
+			}
+			else if (distance < secondDistance)
+				secondDistance = distance;
+		}
+
+		upperBounds[i] = Math.sqrt(minDistance);
+		secondBounds[i] = Math.sqrt(secondDistance);
+
+		recordDistances[chunk] = minDistance;
+
+		return minIndex;
+	}
+
+	/************************************************************************/
+
+	//Method keeps distance of record skipped by bounds for chunk: exact
+	//distance, which also makes upper bound exact, if error is tracked, or
+	//square of upper bound otherwise
+	private void skippedDistance(int i, int current, int chunk)
+	{
+		if (tracksError())
+		{
+			double distance = distance(records[i], centroids[current]);
+			upperBounds[i] = Math.sqrt(distance);
+			recordDistances[chunk] = distance;
+		}
+		else
+			recordDistances[chunk] = upperBounds[i]*upperBounds[i];
+	}
+
+	/************************************************************************/
+
+	//Method finds distances between centroids and half distance from each
+	//centroid to its closest other centroid
+	private void findSeparations()
+	{
+		for (int i = 0; i < numberClusters; i++)
+			separations[i] = Double.POSITIVE_INFINITY;
+
+		//distances are symmetric so find each pair once
+		for (int i = 0; i < numberClusters; i++)
+			for (int j = i + 1; j < numberClusters; j++)
+			{
+				double d = Math.sqrt(distance(centroids[i], centroids[j]));
+				centroidDistances[i][j] = d;
+				centroidDistances[j][i] = d;
+
+				separations[i] = Math.min(separations[i], 0.5*d);
+				separations[j] = Math.min(separations[j], 0.5*d);
+			}
+	}
+
+	/************************************************************************/
+
+	//Method finds how far each centroid moved since previous assignment
+	private void findDrift()
+	{
+		for (int j = 0; j < numberClusters; j++)
+			drift[j] = Math.sqrt(distance(previousCentroids[j], centroids[j]));
+	}
+
+	/************************************************************************/
+
+	//Method keeps copy of centroids used in assignment
+	private void savePreviousCentroids()
+	{
+		for (int j = 0; j < numberClusters; j++)
+			System.arraycopy(centroids[j], 0, previousCentroids[j], 0, numberAttributes);
+	}
+
+	/************************************************************************/
+
+	//Method updates centroids of clusters in place from sums found in
+	//assignment, and returns number of empty clusters moved to records
+	private int updateCentroids()
+	{
+		//find cluster sums and sizes
+		mergeChunks();
+
+		//find centroid of each cluster and largest move of centroids
+		int numberEmpty = 0;
+		double maxMove = 0;
+		for (int i = 0; i < numberClusters; i++)
+		{
+			//centroid of empty cluster is moved later
+			if (clusterSizes[i] == 0)
+			{
+				numberEmpty++;
+				continue;
+			}
+
+			double scale = 1.0/clusterSizes[i];
+			double move = 0;
+
+			for (int j = 0; j < numberAttributes; j++)
+			{
+				double value = clusterSums[i][j]*scale;
+				move += (value - centroids[i][j])*(value - centroids[i][j]);
+				centroids[i][j] = value;
+			}
+
+			maxMove = Math.max(maxMove, move);
+		}
+
+		centroidMove = Math.sqrt(maxMove);
+
+		//move centroids of empty clusters to records, if records are here
+		//and are the ones clustered, not those of workers
+		if (numberEmpty > 0 && !emptyClusters.equals("keep") &&
+				(records != null || segments != null) && role.equals("local"))
+			return reseedClusters();
+		else
+			return 0;
+	}
+
+	/************************************************************************/
+
+	//Method merges sums and sizes of chunks into cluster sums and sizes
+	private void mergeChunks()
+	{
+		//empty cluster sums and sizes
+		for (int i = 0; i < numberClusters; i++)
+		{
+			Arrays.fill(clusterSums[i], 0);
+			clusterSizes[i] = 0;
+		}
+
+		//merge sums and sizes of chunks in order of chunks, so result does
+		//not depend on number of threads
+		for (int c = 0; c < numberChunks; c++)
+			for (int i = 0; i < numberClusters; i++)
+			{
+				for (int j = 0; j < numberAttributes; j++)
+					clusterSums[i][j] += partialSums[c][i][j];
+
+				clusterSizes[i] += partialSizes[c][i];
+			}
+	}
+
+	/************************************************************************/
+
+	//Method moves centroids of empty clusters to records farthest from their
+	//centroids or to random records, and returns number of centroids moved;
+	//records which coincide with their centroids are not picked
+	private int reseedClusters()
+	{
+		int numberPicked = 0;
+		double maxMove = 0;
+
+		for (int i = 0; i < numberClusters; i++)
+		{
+			if (clusterSizes[i] > 0)
+				continue;
+
+			int index = -1;
+			if (emptyClusters.equals("random"))
+			{
+				//go from random record to first record away from its centroid
+				int start = rand.nextInt(numberRecords);
+				for (int r = 0; r < numberRecords && index < 0; r++)
+				{
+					int candidate = (start + r) % numberRecords;
+					if (distance(record(candidate, recordBuffer), centroids[clusters[candidate]]) > 0 &&
+							!picked(candidate, numberPicked))
+						index = candidate;
+				}
+			}
+			else
+			{
+				//find record farthest from its centroid not picked already
+				double maxDistance = 0;
+				for (int r = 0; r < numberRecords; r++)
+				{
+					double distance = distance(record(r, recordBuffer), centroids[clusters[r]]);
+					if (distance > maxDistance && !picked(r, numberPicked))
+					{
+						maxDistance = distance;
+						index = r;
+					}
+				}
+			}
+
+			//all records coincide with centroids or are picked already
+			if (index < 0)
+				break;
+
+			reseeded[numberPicked] = index;
+			numberPicked++;
+
+			//move centroid to record
+			double[] record = record(index, recordBuffer);
+			maxMove = Math.max(maxMove, distance(record, centroids[i]));
+			System.arraycopy(record, 0, centroids[i], 0, numberAttributes);
+		}
+
+		centroidMove = Math.max(centroidMove, Math.sqrt(maxMove));
+
+		return numberPicked;
+	}
+
+	/************************************************************************/
+
+	//Method decides whether record was picked for an empty cluster already
+	private boolean picked(int index, int numberPicked)
+	{
+		for (int p = 0; p < numberPicked; p++)
+			if (reseeded[p] == index)
+				return true;
+
+		return false;
+	}
+
+	/************************************************************************/
+
+	//Method returns sum squared error of records from their centroids, found
+	//in last assignment if it is still current, or with a pass over records
+	private double currentError()
+	{
+		if (errorCurrent)
+			return iterationError;
+		else
+			return findError();
+	}
+
+	/************************************************************************/
+
+	//Method finds sum squared error of records from their centroids
+	private double findError()
+	{
+		double sumError = 0;
+
+		//go thru all records
+		for (int i = 0; i < numberRecords; i++)
+			sumError += distance(record(i, recordBuffer), centroids[clusters[i]]);
+
+		return sumError;
+	}
+
+	/************************************************************************/
+
+	//Method finds distance between two records
+	private double distance(double[]u, double[] v)
+	{
+		double sum = 0;
+
+		//find euclidean distance square between two records
+		for (int i = 0; i < u.length; i++)
+			sum += (u[i] - v[i])*(u[i] - v[i]);
+
+		return sum;
 	}
 
 	/************************************************************************/
 
-	//Method loads records from input file
-	public void load(String inputFile) throws IOException
+	//Method makes this clustering a worker owning its loaded records: it
+	//waits for a coordinator on local port, then in each iteration receives
+	//centroids, assigns its records, and sends back only cluster sizes,
+	//sums and changes; clusters of records stay here for display
+	public void work(int port) throws IOException
 	{
-		Scanner inFile = new Scanner(new File(inputFile));
+		ServerSocket server = new ServerSocket(port, 1, InetAddress.getLoopbackAddress());
+		Socket socket = server.accept();
+		server.close();
+		role = "worker";
 
-		//read number of records, attributes
-		numberRecords = inFile.nextInt();
-		numberAttributes = inFile.nextInt();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 
-		//create array of records
-		records = new double[numberRecords][numberAttributes];
+		//tell coordinator number of records, attributes
+		out.writeInt(numberRecords);
+		out.writeInt(numberAttributes);
+		out.flush();
 
-		//for each record
-		for (int i = 0; i < numberRecords; i++)
+		boolean done = false;
+		while (!done)
 		{
-			//read attributes
-			for (int j = 0; j < numberAttributes; j++)
-				records[i][j] = inFile.nextDouble();
+			char command = in.readChar();
+
+			//send record asked for by coordinator
+			if (command == 'R')
+			{
+				double[] record = record(in.readInt(), new double[numberAttributes]);
+				for (int j = 0; j < numberAttributes; j++)
+					out.writeDouble(record[j]);
+			}
+			//assign records to centroids sent by coordinator
+			else if (command == 'A')
+			{
+				//on first assignment create clusters and buffers
+				int numberClusters = in.readInt();
+				boolean first = in.readBoolean();
+				if (first)
+				{
+					this.numberClusters = numberClusters;
+					initializeClusters();
+					initializeBuffers();
+					centroids = new double[numberClusters][numberAttributes];
+				}
+
+				for (int i = 0; i < numberClusters; i++)
+					for (int j = 0; j < numberAttributes; j++)
+						centroids[i][j] = in.readDouble();
+
+				//assign records and merge sums of chunks
+				int clusterChanges = assignClusters();
+				mergeChunks();
+
+				//send changes, error, sizes and sums
+				out.writeInt(clusterChanges);
+				out.writeDouble(iterationError);
+				for (int i = 0; i < numberClusters; i++)
+				{
+					out.writeInt(clusterSizes[i]);
+					for (int j = 0; j < numberAttributes; j++)
+						out.writeDouble(clusterSums[i][j]);
+				}
+			}
+			//send error of final centroids sent by coordinator
+			else if (command == 'E')
+			{
+				for (int i = 0; i < numberClusters; i++)
+					for (int j = 0; j < numberAttributes; j++)
+						centroids[i][j] = in.readDouble();
+
+				out.writeDouble(findError());
+			}
+			else
+				done = true;
+
+			out.flush();
 		}
 
-		inFile.close();
+		socket.close();
+		role = "local";
 	}
 
 	/************************************************************************/
 
-	//Method sets parameters of clustering
-	public void setParameters(int numberClusters, int seed)
+	//Method performs k-means as coordinator of workers given as "host:port",
+	//whose records are taken in order of workers; centroids are initialized
+	//with random records as in cluster(), and in each iteration workers sum
+	//their records concurrently and coordinator merges sums in order of
+	//workers, so centroids equal those of cluster() up to rounding of sums
+	public void clusterDistributed(String[] workers) throws IOException
 	{
-		//set number of clusters
-		this.numberClusters = numberClusters;
+		int numberWorkers = workers.length;
+		Socket[] sockets = new Socket[numberWorkers];
+		DataInputStream[] in = new DataInputStream[numberWorkers];
+		DataOutputStream[] out = new DataOutputStream[numberWorkers];
+		int[] workerRecords = new int[numberWorkers];
+		role = "coordinator";
 
-		//create random number generator with seed
-		this.rand = new Random(seed);
-	}
+		//connect to workers and find their numbers of records
+		numberRecords = 0;
+		for (int w = 0; w < numberWorkers; w++)
+		{
+			int colon = workers[w].lastIndexOf(':');
+			sockets[w] = new Socket(workers[w].substring(0, colon),
+					Integer.parseInt(workers[w].substring(colon + 1)));
+			in[w] = new DataInputStream(new BufferedInputStream(sockets[w].getInputStream()));
+			out[w] = new DataOutputStream(new BufferedOutputStream(sockets[w].getOutputStream()));
 
-	/************************************************************************/
+			workerRecords[w] = in[w].readInt();
+			numberAttributes = in[w].readInt();
+			numberRecords += workerRecords[w];
+		}
 
-	//Method performs k-means of clustering
-	public void cluster()
-	{
-		//initialize clusters of records
-		initializeClusters();
+		//sums and sizes of each worker are merged like chunks
+		numberChunks = numberWorkers;
+		partialSums = new double[numberWorkers][numberClusters][numberAttributes];
+		partialSizes = new int[numberWorkers][numberClusters];
+		partialChanges = new int[numberWorkers];
+		clusterSums = new double[numberClusters][numberAttributes];
+		clusterSizes = new int[numberClusters];
+		allocations.clear();
 
-		//initialize centroids of clusters
-		initializeCentroids();
-		
-		//add to trace of centroids
-		trace.addLast(centroids.clone());
+		//pick random records as centroids, asking their workers for them
+		centroids = new double[numberClusters][numberAttributes];
+		for (int i = 0; i < numberClusters; i++)
+		{
+			int index = rand.nextInt(numberRecords);
+
+			int w = 0;
+			while (index >= workerRecords[w])
+			{
+				index -= workerRecords[w];
+				w++;
+			}
+
+			out[w].writeChar('R');
+			out[w].writeInt(index);
+			out[w].flush();
+			for (int j = 0; j < numberAttributes; j++)
+				centroids[i][j] = in[w].readDouble();
+		}
+
+		startTrace();
+		addTrace();
 
-		//stop condition has not been reached
 		boolean stopCondition = false;
+		startIterations();
 
-		//while stop condition is not reached
 		while (!stopCondition)
 		{
-			//assign clusters to records
-			int clusterChanges = assignClusters();
+			//assign records of workers and merge their sums and sizes
+			int clusterChanges = assignWorkers(in, out);
 
-			//update centroids of clusters
-			updateCentroids();
-			
-			//add to trace of centroids
-			trace.addLast(centroids.clone());
+			//update centroids from sums of workers, which never reseeds
+			//empty clusters, since records are not here
+			int numberMoved = updateCentroids();
+			numberIterations++;
+			addTrace();
+
+			//check stop conditions as in cluster() and tell listener
+			stopCondition = finishIteration(clusterChanges, numberMoved);
+		}
+
+		//if error of assignment is not that of final centroids, workers find
+		//error of final centroids with their clusters, as findError() does
+		if (!errorCurrent)
+		{
+			for (int w = 0; w < numberWorkers; w++)
+			{
+				out[w].writeChar('E');
+				for (int i = 0; i < numberClusters; i++)
+					for (int j = 0; j < numberAttributes; j++)
+						out[w].writeDouble(centroids[i][j]);
+				out[w].flush();
+			}
 
-			//stop condition is reached if no records changed clusters
-			stopCondition = (clusterChanges == 0);
+			iterationError = 0;
+			for (int w = 0; w < numberWorkers; w++)
+				iterationError += in[w].readDouble();
+			errorCurrent = true;
 		}
+
+		//tell workers clustering is done
+		for (int w = 0; w < numberWorkers; w++)
+		{
+			out[w].writeChar('D');
+			out[w].flush();
+			sockets[w].close();
+		}
+
+		role = "local";
+		finishTrace();
+		publish();
 	}
 
 	/************************************************************************/
 
-	//Method initializes clusters of records
-	private void initializeClusters()
+	//Method sends centroids to workers, which assign their records, then
+	//receives their changes, errors, sizes and sums in order of workers;
+	//returns number of records of all workers that changed clusters
+	private int assignWorkers(DataInputStream[] in, DataOutputStream[] out) throws IOException
 	{
-		//create array of cluster labels
-		clusters = new int[numberRecords];
+		int numberWorkers = in.length;
 
-		//assign cluster -1 to all records
-		for (int i = 0; i < numberRecords; i++)
-			clusters[i] = -1;
+		//send centroids to all workers first, so they work concurrently
+		for (int w = 0; w < numberWorkers; w++)
+		{
+			out[w].writeChar('A');
+			out[w].writeInt(numberClusters);
+			out[w].writeBoolean(numberIterations == 0);
+			for (int i = 0; i < numberClusters; i++)
+				for (int j = 0; j < numberAttributes; j++)
+					out[w].writeDouble(centroids[i][j]);
+			out[w].flush();
+		}
+
+		//receive changes, errors, sizes and sums of workers
+		int clusterChanges = 0;
+		iterationError = 0;
+		for (int w = 0; w < numberWorkers; w++)
+		{
+			clusterChanges += in[w].readInt();
+			iterationError += in[w].readDouble();
+			for (int i = 0; i < numberClusters; i++)
+			{
+				partialSizes[w][i] = in[w].readInt();
+				for (int j = 0; j < numberAttributes; j++)
+					partialSums[w][i][j] = in[w].readDouble();
+			}
+		}
+
+		return clusterChanges;
 	}
 
 	/************************************************************************/
 
-	//Method initializes centroids of clusters
-	private void initializeCentroids()
+	//Method starts online clustering of records given one at a time or in
+	//batches; first records become centroids, then each record moves its
+	//closest centroid with learning rate one over records seen by it, so
+	//memory does not grow with number of records; online state is kept apart
+	//from loaded records, so it does not change their clustering or display
+	public void startOnline(int numberClusters, int numberAttributes)
 	{
-		//create array of centroids
-		centroids = new double[numberClusters][numberAttributes];
+		if (numberClusters <= 0)
+			throw new IllegalArgumentException("number of clusters must be positive");
 
-		//for each cluster
-		for (int i = 0; i < numberClusters; i++)
+		synchronized (onlineLock)
 		{
-			//randomly pick a record
-			int index = rand.nextInt(numberRecords);
-
-			//use record as centroid
-			for (int j = 0; j < numberAttributes; j++)
-				centroids[i][j] = records[index][j];
+			onlineAttributes = numberAttributes;
+			onlineCounts = new long[numberClusters];
+			model = new Snapshot(new double[0][], 0, numberAttributes);
 		}
 	}
 
 	/************************************************************************/
 
-	//Method assigns clusters to records
-	private int assignClusters()
+	//Method adds a record to online clustering
+	public void add(double[] record)
 	{
-		int clusterChanges = 0;
+		add(new double[][] {record});
+	}
 
-		//go thru records and assign clusters to them
-		for (int i = 0; i < numberRecords; i++)
+	/************************************************************************/
+
+	//Method adds a batch of records to online clustering, and publishes
+	//centroids after the batch; readers keep using previous centroids
+	//until then
+	public void add(double[][] batch)
+	{
+		synchronized (onlineLock)
 		{
-			//find distance between record and first centroid
-			double minDistance = distance(records[i], centroids[0]);
-			int minIndex = 0;
+			if (onlineCounts == null)
+				throw new IllegalStateException("online clustering is not started");
 
-			//go thru centroids and find closest centroid
-			for (int j = 0; j < numberClusters; j++)
+			//check all records before any centroid moves
+			for (double[] record : batch)
+				if (record.length != onlineAttributes)
+					throw new IllegalArgumentException("record has " + record.length +
+							" attributes, online clustering has " + onlineAttributes);
+
+			//centroids of online clustering, kept even if parameters change
+			int onlineClusters = onlineCounts.length;
+
+			//share rows of published centroids, copy a row before changing it
+			Snapshot current = model;
+			double[][] rows = Arrays.copyOf(current.centroids, onlineClusters);
+			int numberCentroids = current.numberCentroids;
+			boolean[] copied = new boolean[onlineClusters];
+
+			for (double[] record : batch)
 			{
-				//find distance between record and centroid
-				double distance = distance(records[i], centroids[j]);
+				//record becomes centroid until there are enough centroids
+				if (numberCentroids < onlineClusters)
+				{
+					rows[numberCentroids] = record.clone();
+					copied[numberCentroids] = true;
+					onlineCounts[numberCentroids] = 1;
+					numberCentroids++;
+					continue;
+				}
 
-				//if distance is less than minimum, update minimum
-				if (distance < minDistance)
+				//move closest centroid towards record
+				int cluster = closest(rows, numberCentroids, record);
+				if (!copied[cluster])
 				{
-					minDistance = distance;
-					minIndex = j;
+					rows[cluster] = rows[cluster].clone();
+					copied[cluster] = true;
 				}
-			}
 
-			//if closest cluster is different from current cluster
-			if (clusters[i] != minIndex)
-			{
-				//change chluster of record
-				clusters[i] = minIndex;
-				//keep count of cluster changes
-				clusterChanges++;
+				onlineCounts[cluster] += 1;
+				double rate = 1.0/onlineCounts[cluster];
+
+				for (int j = 0; j < onlineAttributes; j++)
+					rows[cluster][j] += rate*(record[j] - rows[cluster][j]);
 			}
 
+			model = new Snapshot(rows, numberCentroids, onlineAttributes);
 		}
+	}
 
-		//return number of cluster changes
-		return clusterChanges;
+	/************************************************************************/
+
+	//Method returns copy of published centroids
+	public double[][] getCentroids()
+	{
+		Snapshot current = model;
+
+		double[][] result = new double[current.numberCentroids][];
+		for (int i = 0; i < current.numberCentroids; i++)
+			result[i] = current.centroids[i].clone();
+
+		return result;
 	}
 
 	/************************************************************************/
 
-	//Method updates centroids of clusters
-	private void updateCentroids()
+	//Method returns index of published centroid closest to record, or -1 if
+	//there are no centroids yet; centroids are published by cluster(),
+	//loadModel() and online clustering, and may be read by many threads
+	public int predict(double[] record)
 	{
-		//create array of cluster sums and initialize
-		double[][] clusterSum = new double[numberClusters][numberAttributes];
-		for (int i = 0; i < numberClusters; i++)
-			for (int j = 0; j < numberAttributes; j++)
-				clusterSum[i][j] = 0;
+		Snapshot current = model;
+		checkRecord(current, record);
+
+		return closest(current.centroids, current.numberCentroids, record);
+	}
+
+	/************************************************************************/
+
+	//Method returns indexes of published centroids closest to records
+	public int[] predict(double[][] records)
+	{
+		Snapshot current = model;
+
+		//check all records before predicting any
+		for (int i = 0; i < records.length; i++)
+			checkRecord(current, records[i]);
 
-		//create array of cluster sizes and initialize
-		int[] clusterSize = new int[numberClusters];
+		//all records use the same centroids even if new ones are published
+		int[] result = new int[records.length];
+		for (int i = 0; i < records.length; i++)
+			result[i] = closest(current.centroids, current.numberCentroids, records[i]);
+
+		return result;
+	}
+
+	/************************************************************************/
+
+	//Method checks that record has as many attributes as published
+	//centroids, since distance to centroids of another dimension is wrong
+	private void checkRecord(Snapshot current, double[] record)
+	{
+		if (current.numberAttributes >= 0 && record.length != current.numberAttributes)
+			throw new IllegalArgumentException("record has " + record.length +
+					" attributes, model has " + current.numberAttributes);
+	}
+
+	/************************************************************************/
+
+	//Method publishes copy of centroids of clustering to readers
+	private void publish()
+	{
+		double[][] copy = new double[numberClusters][];
 		for (int i = 0; i < numberClusters; i++)
-			clusterSize[i] = 0;
+			copy[i] = centroids[i].clone();
 
-		//for each record
-		for (int i = 0; i < numberRecords; i++)
-		{
-			//find cluster of record
-			int cluster = clusters[i];
+		model = new Snapshot(copy, numberClusters, numberAttributes);
+	}
 
-			//add record to cluster sum
-			clusterSum[cluster] = sum(clusterSum[cluster], records[i]);
+	/************************************************************************/
 
-			//increment cluster size
-			clusterSize[cluster] += 1;
-		}
+	//Method writes published centroids to binary file of number of
+	//centroids, number of attributes and attributes of centroids
+	public void saveModel(String modelFile) throws IOException
+	{
+		Snapshot current = model;
+		int numberAttributes = Math.max(0, current.numberAttributes);
+
+		DataOutputStream outFile = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(modelFile)));
+
+		//write number of centroids, attributes
+		outFile.writeInt(current.numberCentroids);
+		outFile.writeInt(numberAttributes);
 
-		//find centroid of each cluster
-		for (int  i = 0; i < numberClusters; i++)
-			centroids[i] = scale(clusterSum[i], 1.0/clusterSize[i]);
+		//write attributes of centroids
+		for (int i = 0; i < current.numberCentroids; i++)
+			for (int j = 0; j < numberAttributes; j++)
+				outFile.writeDouble(current.centroids[i][j]);
+
+		outFile.close();
 	}
 
 	/************************************************************************/
 
-	//Method finds distance between two records
-	private double distance(double[]u, double[] v)
+	//Method reads centroids written by saveModel and publishes them, so
+	//records can be predicted without clustering
+	public void loadModel(String modelFile) throws IOException
 	{
-		double sum = 0;
+		DataInputStream inFile = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(modelFile)));
 
-		//find euclidean distance square between two records
-		for (int i = 0; i < u.length; i++)
-			sum += (u[i] - v[i])*(u[i] - v[i]);
+		//read number of centroids, attributes
+		int numberCentroids = inFile.readInt();
+		int numberAttributes = inFile.readInt();
 
-		return sum;
+		//read attributes of centroids
+		double[][] rows = new double[numberCentroids][numberAttributes];
+		for (int i = 0; i < numberCentroids; i++)
+			for (int j = 0; j < numberAttributes; j++)
+				rows[i][j] = inFile.readDouble();
+
+		inFile.close();
+
+		model = new Snapshot(rows, numberCentroids, numberAttributes);
 	}
 
 	/************************************************************************/
 
-	//Method finds sum of two records
-	private double[] sum(double[] u, double[] v)
+	//Method finds closest of given centroids to record, ties go to lower index
+	private int closest(double[][] rows, int numberCentroids, double[] record)
 	{
-		double[] result = new double[u.length];
+		int minIndex = -1;
+		double minDistance = 0;
 
-		//add corresponding attributes of records
-		for (int i = 0; i < u.length; i++)
-			result[i] = u[i] + v[i];
+		for (int j = 0; j < numberCentroids; j++)
+		{
+			double distance = distance(record, rows[j]);
 
-		return result;
+			if (minIndex < 0 || distance < minDistance)
+			{
+				minDistance = distance;
+				minIndex = j;
+			}
+		}
+
+		return minIndex;
 	}
 
 	/************************************************************************/
 
-	//Method finds scaler multiple of a record
-	private double[] scale(double[] u, double k)
+	//Method finds bytes allocated so far by calling thread, or 0 if virtual
+	//machine does not measure allocations
+	private long allocatedBytes()
 	{
-		double[] result = new double[u.length];
+		if (THREADS instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(
+					Thread.currentThread().getId());
+		else
+			return 0;
+	}
 
-		//multiply attributes of record by scaler
-		for (int i = 0; i < u.length; i++)
-			result[i] = u[i]*k;
+	/************************************************************************/
+
+	//Method returns bytes allocated by calling thread in each iteration of
+	//assignment and centroid update
+	public long[] getAllocations()
+	{
+		long[] result = new long[allocations.size()];
+
+		for (int i = 0; i < result.length; i++)
+			result[i] = allocations.get(i);
 
 		return result;
 	}
 
 	/************************************************************************/
 
+	//Method display bytes allocated in each iteration
+	public void displayAllocations()
+	{
+		System.out.println("\nAllocations of iterations : ");
+
+		for (int i = 0; i < allocations.size(); i++)
+			System.out.println("Iteration " + (i+1) + " : " + allocations.get(i) + " bytes");
+	}
+
+	/************************************************************************/
+
 	//Method writes records and their clusters to output file
 	public void display(String outputFile) throws IOException
 	{
@@ -276,8 +2632,9 @@ public class Kmeans
 				if(clusters[i] == c)
 				{
 					//write attributes of record
+					double[] record = record(i, recordBuffer);
 					for (int j = 0; j < numberAttributes; j++)
-						outFile.print((int) records[i][j] + " ");
+						outFile.print((int) record[j] + " ");
 		
 					//write cluster label
 					outFile.println((int) clusters[i]+1);
@@ -309,45 +2666,89 @@ public class Kmeans
 	//Method compute and display sum squared error
 	public void displayError()
 	{
-		double sumError = 0;
-		
-		//go thru all records
-		for(int i = 0; i < numberRecords; i++)
-		{
-			//find distance between record and its centroid
-			double d = distance(records[i], centroids[clusters[i]]);
-			
-			sumError += d;
-		}
+		double sumError = currentError();
 		
 		System.out.println("\nSum squared error : " + sumError);
 	}
 	
+	/************************************************************************/
+
+	//Method display seed, error, time and iterations of each restart
+	public void displayRestarts()
+	{
+		System.out.println("\nRestarts of clustering : ");
+
+		for (int r = 0; r < numberRestarts; r++)
+		{
+			System.out.print("Restart " + (r+1) + " : seed " + restartSeeds[r]);
+			System.out.print(", error " + restartErrors[r]);
+			System.out.print(", " + restartTimes[r] + " ms");
+			System.out.print(", " + restartIterations[r] + " iterations");
+			System.out.println(r == bestRestart ? " (best)" : "");
+		}
+	}
+
 	/************************************************************************/
 	
 	//Method display trace of centroids
 	public void traceCentroids()
 	{
 		System.out.println("\nTrace of centroids : \n");
-		
-		int numberTrace = trace.size();
-		
-		//go thru all trace
-		for(int i = 0; i < numberTrace; i++)
+
+		if (traceMode.equals("ring"))
 		{
-			System.out.println("Iteration " + i + " :");
-			
-			//go thru each centroid
-			for(int j = 0; j < numberClusters; j++)
+			//go thru iterations still in ring
+			for (int i = Math.max(0, numberTrace - traceSize); i < numberTrace; i++)
+				displayIteration(i, trace[i % traceSize]);
+		}
+		else if (traceMode.equals("file"))
+		{
+			try
+			{
+				DataInputStream inFile = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(traceFile)));
+
+				//read number of clusters, attributes
+				int numberClusters = inFile.readInt();
+				int numberAttributes = inFile.readInt();
+				double[][] centroids = new double[numberClusters][numberAttributes];
+
+				//go thru all iterations in file
+				for (int i = 0; i < numberTrace; i++)
+				{
+					for (int j = 0; j < numberClusters; j++)
+						for (int k = 0; k < numberAttributes; k++)
+							centroids[j][k] = inFile.readDouble();
+
+					displayIteration(i, centroids);
+				}
+
+				inFile.close();
+			}
+			catch (IOException e)
 			{
-				System.out.print("Centroid " + (j+1) + " : ");
-				for(int k = 0; k < numberAttributes; k++)
-					System.out.print(trace.get(i)[j][k] + " ");
-				System.out.println();
+				throw new UncheckedIOException(e);
 			}
-			
+		}
+	}
+
+	/************************************************************************/
+
+	//Method display centroids of an iteration
+	private void displayIteration(int iteration, double[][] centroids)
+	{
+		System.out.println("Iteration " + iteration + " :");
+
+		//go thru each centroid
+		for(int j = 0; j < numberClusters; j++)
+		{
+			System.out.print("Centroid " + (j+1) + " : ");
+			for(int k = 0; k < numberAttributes; k++)
+				System.out.print(centroids[j][k] + " ");
 			System.out.println();
 		}
+
+		System.out.println();
 	}
 
-}
\ No newline at end of file
+}
@@ -21,6 +21,28 @@ public class NearestNeighbor {
 
     /**************************************************************************************************************/
 
+    //Node of kd-tree of training records
+    private class Node
+    {
+        private int from;                               //first record of node in order
+        private int to;                                 //record after last record of node
+        private double[] lower;                         //lower corner of bounding box
+        private double[] upper;                         //upper corner of bounding box
+        private Node left;                              //node of lower records
+        private Node right;                             //node of upper records
+
+        //Constructor of node
+        private Node (int from, int to)
+        {
+            this.from = from;                           //assign range of records
+            this.to = to;
+            this.left = null;                           //node is a leaf until split
+            this.right = null;
+        }
+    }
+
+    /**************************************************************************************************************/
+
     private ArrayList<Record> records;                  //list of training records
 
     private int numberRecords;                          //number of training records
@@ -30,6 +52,15 @@ public class NearestNeighbor {
     private int numberNeighbors;                        //number of nearest neighbors
     private String majorityRule;                        //majority rule used
 
+    private Node root;                                  //root of kd-tree, null if not built
+    private int[] order;                                //records in order of nodes
+    private double[] bestDistances;                     //smallest distances found, ascending
+    private int numberBest;                             //number of smallest distances found
+    private int[] found;                                //records found within a distance
+    private int numberFound;                            //number of records found
+
+    private static final int LEAF_SIZE = 16;            //most records in a leaf
+
     /**************************************************************************************************************/
 
     //Constructor of classifier
@@ -43,6 +74,9 @@ public class NearestNeighbor {
 
         numberNeighbors = 0;                            //nearest neighbors, majority rule
         majorityRule = null;                            //have no values
+
+        root = null;                                    //there is no index
+        order = null;
     }
 
     /**************************************************************************************************************/
@@ -69,8 +103,9 @@ public class NearestNeighbor {
         numberNeighbors = inFile.nextInt();
         majorityRule = inFile.next();
 
-        //empty list of records
+        //empty list of records, index of old records is dropped
         records = new ArrayList<Record>();
+        root = null;
 
         //for each record
         for (int i = 0; i < numberRecords; i++)
@@ -138,9 +173,236 @@ public class NearestNeighbor {
 
     /**************************************************************************************************************/
 
+    //Method builds kd-tree index of training records, classification then
+    //gives the same classes as comparing with all records but only compares
+    //with records near the given attributes
+    public void buildIndex ()
+    {
+        order = new int[numberRecords];
+        for (int i = 0; i < numberRecords; i++)
+            order[i] = i;
+
+        root = createNode(0, numberRecords);
+
+        bestDistances = new double[numberNeighbors];
+        found = new int[Math.max(16, numberNeighbors)];
+    }
+
+    /**************************************************************************************************************/
+
+    //Method creates node of records from, ..., to-1 in order, splitting
+    //them at median of widest side of bounding box
+    private Node createNode (int from, int to)
+    {
+        Node node = new Node(from, to);
+
+        //find bounding box of records
+        node.lower = new double[numberAttributes];
+        node.upper = new double[numberAttributes];
+        Arrays.fill(node.lower, Double.POSITIVE_INFINITY);
+        Arrays.fill(node.upper, Double.NEGATIVE_INFINITY);
+
+        for (int i = from; i < to; i++)
+            for (int j = 0; j < numberAttributes; j++)
+            {
+                double value = records.get(order[i]).attributes[j];
+                node.lower[j] = Math.min(node.lower[j], value);
+                node.upper[j] = Math.max(node.upper[j], value);
+            }
+
+        //small nodes are leaves
+        if (to - from <= LEAF_SIZE)
+            return node;
+
+        //find widest side of box, a box of one point is a leaf
+        int widest = 0;
+        for (int j = 1; j < numberAttributes; j++)
+            if (node.upper[j] - node.lower[j] > node.upper[widest] - node.lower[widest])
+                widest = j;
+
+        if (node.upper[widest] == node.lower[widest])
+            return node;
+
+        //sort records of node along widest side and split at middle
+        Integer[] sorted = new Integer[to - from];
+        for (int i = from; i < to; i++)
+            sorted[i - from] = order[i];
+
+        final int attribute = widest;
+        Arrays.sort(sorted, new Comparator<Integer>()
+        {
+            public int compare(Integer u, Integer v)
+            {
+                return Double.compare(records.get(u).attributes[attribute],
+                                      records.get(v).attributes[attribute]);
+            }
+        });
+
+        for (int i = from; i < to; i++)
+            order[i] = sorted[i - from];
+
+        int middle = (from + to)/2;
+        node.left = createNode(from, middle);
+        node.right = createNode(middle, to);
+
+        return node;
+    }
+
+    /**************************************************************************************************************/
+
+    //Method finds records which the nearest neighbor search can choose using
+    //kd-tree: all records within distance of the k-th nearest record,
+    //including every record tied with it, in order of index and leaving out
+    //given record; returns their number, records are in found array
+    private int findCandidates (double[] attributes, int skip)
+    {
+        //find k smallest distances
+        numberBest = 0;
+        searchNearest(root, attributes, skip);
+
+        //find all records within k-th smallest distance
+        numberFound = 0;
+        searchWithin(root, attributes, bestDistances[numberNeighbors - 1], skip);
+
+        //put records in order of index, as records are compared without index
+        Arrays.sort(found, 0, numberFound);
+
+        return numberFound;
+    }
+
+    /**************************************************************************************************************/
+
+    //Method keeps k smallest distances of records of node, skipping nodes
+    //whose boxes are farther than k-th smallest distance found so far
+    private void searchNearest (Node node, double[] attributes, int skip)
+    {
+        if (numberBest == numberNeighbors &&
+            boxDistance(node, attributes) > bestDistances[numberNeighbors - 1])
+            return;
+
+        //leaf compares records
+        if (node.left == null)
+        {
+            for (int i = node.from; i < node.to; i++)
+                if (order[i] != skip)
+                    addDistance(distance(attributes, records.get(order[i]).attributes));
+            return;
+        }
+
+        //search closer child first so farther child is more often skipped
+        if (boxDistance(node.left, attributes) <= boxDistance(node.right, attributes))
+        {
+            searchNearest(node.left, attributes, skip);
+            searchNearest(node.right, attributes, skip);
+        }
+        else
+        {
+            searchNearest(node.right, attributes, skip);
+            searchNearest(node.left, attributes, skip);
+        }
+    }
+
+    /**************************************************************************************************************/
+
+    //Method adds distance to k smallest distances if it is smaller than one
+    private void addDistance (double distance)
+    {
+        if (numberBest == numberNeighbors && distance >= bestDistances[numberBest - 1])
+            return;
+
+        //shift larger distances up and insert distance
+        int i = (numberBest < numberNeighbors) ? numberBest++ : numberBest - 1;
+        while (i > 0 && bestDistances[i - 1] > distance)
+        {
+            bestDistances[i] = bestDistances[i - 1];
+            i--;
+        }
+
+        bestDistances[i] = distance;
+    }
+
+    /**************************************************************************************************************/
+
+    //Method finds records of node within given distance
+    private void searchWithin (Node node, double[] attributes, double bound, int skip)
+    {
+        if (boxDistance(node, attributes) > bound)
+            return;
+
+        //leaf compares records
+        if (node.left == null)
+        {
+            for (int i = node.from; i < node.to; i++)
+                if (order[i] != skip && distance(attributes, records.get(order[i]).attributes) <= bound)
+                {
+                    //add record, doubling found array if full
+                    if (numberFound == found.length)
+                        found = Arrays.copyOf(found, 2*found.length);
+                    found[numberFound] = order[i];
+                    numberFound++;
+                }
+            return;
+        }
+
+        searchWithin(node.left, attributes, bound, skip);
+        searchWithin(node.right, attributes, bound, skip);
+    }
+
+    /**************************************************************************************************************/
+
+    //Method finds distance between attributes and bounding box of node, it
+    //is never larger than distance to any record of node, also after rounding
+    private double boxDistance (Node node, double[] attributes)
+    {
+        double distance = 0;
+
+        for (int i = 0; i < attributes.length; i++)
+        {
+            double difference = 0;
+            if (attributes[i] < node.lower[i])
+                difference = attributes[i] - node.lower[i];
+            else if (attributes[i] > node.upper[i])
+                difference = attributes[i] - node.upper[i];
+
+            distance = distance + difference*difference;
+        }
+
+        return Math.sqrt(distance);
+    }
+
+    /**************************************************************************************************************/
+
+    //Method decides whether index is used, it needs at least as many records
+    //to search as nearest neighbors
+    private boolean usesIndex (int numberRecords)
+    {
+        return root != null && numberNeighbors > 0 && numberNeighbors <= numberRecords;
+    }
+
+    /**************************************************************************************************************/
+
     //Method finds class of given attributes
     private int classify(double[] attributes)
     {
+        //with index only records which can be nearest neighbors are compared,
+        //nearest neighbors chosen among them are the same as among all records
+        if (usesIndex(numberRecords))
+        {
+            int numberCandidates = findCandidates(attributes, -1);
+
+            double[] distance = new double[numberCandidates];
+            int[] id = new int[numberCandidates];
+            for (int i = 0; i < numberCandidates; i++)
+            {
+                distance[i] = distance(attributes, records.get(found[i]).attributes);
+                id[i] = found[i];
+            }
+
+            nearestNeighbor(distance, id);
+
+            return majority(id, attributes);
+        }
+
         double[] distance = new double[numberRecords];
         int[] id = new int[numberRecords];
 
@@ -338,13 +600,29 @@ public class NearestNeighbor {
     	
     	//training records number = total records number - 1
     	int numberRecords = this.numberRecords - 1;
+
+        //with index only records which can be nearest neighbors are compared
+        boolean indexed = usesIndex(numberRecords);
+        if (indexed)
+            numberRecords = findCandidates(attributes, index);
+
         double[] distance = new double[numberRecords];
         int[] id = new int[numberRecords];
         
         int j = 0; //keep track of index of distance and id
 
+        //find distances between attributes and records found by index
+        if (indexed)
+        {
+            for (j = 0; j < numberRecords; j++)
+            {
+                distance[j] = distance(attributes, records.get(found[j]).attributes);
+                id[j] = found[j];
+            }
+        }
+
         //find distances between attributes and all records except the record in given index
-        for (int i = 0; i < this.numberRecords; i++)
+        for (int i = 0; i < this.numberRecords && !indexed; i++)
         {
         	if(i != index){
         		distance[j] = distance(attributes, records.get(i).attributes);